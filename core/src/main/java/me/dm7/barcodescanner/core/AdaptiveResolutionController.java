@@ -0,0 +1,162 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Preview size policy that adapts the preview size to the measured decode time.
+ * <p>The first size is picked by the wrapped policy. After that, decode times and results are
+ * collected over windows of frames. The preview steps down to the next smaller size with the
+ * same aspect ratio while decoding takes longer than the target. When dense formats (PDF417,
+ * DataMatrix, MaxiCode) are scanned for and nothing is found for several windows, it steps
+ * back up towards the initial size, accepting decode times of up to
+ * {@link #DENSE_TARGET_FACTOR} times the target at that size.</p>
+ * <p>Every change waits for a cool down and results in one preview restart, which the listener
+ * is asked to perform.</p>
+ */
+public class AdaptiveResolutionController implements PreviewSizePolicy {
+    public static final long DEFAULT_TARGET_DECODE_MILLIS = 80;
+    public static final float DENSE_TARGET_FACTOR = 1.5f;
+
+    private static final int WINDOW_SIZE = 30;
+    private static final int FAILED_WINDOWS_BEFORE_STEP_UP = 3;
+    private static final long MIN_CHANGE_INTERVAL_NANOS = 3000000000L;
+    // A step up has to leave this much room below the threshold for stepping down again
+    private static final float STEP_UP_HEADROOM = 0.8f;
+
+    public interface Listener {
+        /** Called on a decode thread. The new size is picked up when the preview is set up again. */
+        void onPreviewSizeChanged();
+    }
+
+    private final PreviewSizePolicy mInitialPolicy;
+    private final long mTargetNanos;
+    private final Listener mListener;
+
+    // Guarded by this
+    private List<Camera.Size> mLadder;
+    private int mIndex;
+    private int mInitialIndex;
+    private boolean mDenseFormats;
+    // Set when the current size was chosen for readability and may exceed the target
+    private boolean mDenseTarget;
+    private boolean mChangePending;
+    private long mLastChangeNanos;
+    private long mWindowNanos;
+    private int mWindowSamples;
+    private int mWindowResults;
+    private int mFailedWindows;
+
+    public AdaptiveResolutionController(PreviewSizePolicy initialPolicy, long targetDecodeMillis, Listener listener) {
+        mInitialPolicy = initialPolicy != null ? initialPolicy : new DisplayFitSizePolicy();
+        mTargetNanos = (targetDecodeMillis > 0 ? targetDecodeMillis : DEFAULT_TARGET_DECODE_MILLIS) * 1000000L;
+        mListener = listener;
+    }
+
+    @Override
+    public synchronized Camera.Size selectPreviewSize(List<Camera.Size> sizes, int viewWidth, int viewHeight, Rect framingRect,
+                                                      Collection<String> formats, float aspectTolerance) {
+        mDenseFormats = DecodeThroughputSizePolicy.getMinPixels(formats) >= DecodeThroughputSizePolicy.DENSE_MIN_PIXELS;
+        if(mLadder == null || !containsSize(sizes, mLadder.get(mIndex))) {
+            // First selection, or a camera with different sizes
+            Camera.Size initialSize = mInitialPolicy.selectPreviewSize(sizes, viewWidth, viewHeight, framingRect,
+                    formats, aspectTolerance);
+            if(initialSize == null) {
+                return null;
+            }
+            mLadder = buildLadder(sizes, initialSize, aspectTolerance);
+            mIndex = mLadder.indexOf(initialSize);
+            mInitialIndex = mIndex;
+            mDenseTarget = false;
+        }
+        mChangePending = false;
+        mLastChangeNanos = System.nanoTime();
+        resetWindow();
+        mFailedWindows = 0;
+        return mLadder.get(mIndex);
+    }
+
+    /** Feeds the outcome of a decoded frame into the controller. Safe to call from any thread. */
+    public void onFrameDecoded(FrameGeometry geometry, long decodeTimeNanos, boolean found) {
+        if(decodeTimeNanos < 0) {
+            return;
+        }
+        synchronized (this) {
+            if(mLadder == null || mChangePending) {
+                return;
+            }
+            Camera.Size size = mLadder.get(mIndex);
+            if(geometry.getPreviewWidth() != size.width || geometry.getPreviewHeight() != size.height) {
+                // Frame of a previous size
+                return;
+            }
+            mWindowNanos += decodeTimeNanos;
+            mWindowSamples++;
+            if(found) {
+                mWindowResults++;
+            }
+            if(mWindowSamples < WINDOW_SIZE) {
+                return;
+            }
+
+            long averageNanos = mWindowNanos / mWindowSamples;
+            mFailedWindows = mWindowResults == 0 ? mFailedWindows + 1 : 0;
+            resetWindow();
+            if(System.nanoTime() - mLastChangeNanos < MIN_CHANGE_INTERVAL_NANOS) {
+                return;
+            }
+
+            int index = mIndex;
+            float stepDownThreshold = mDenseTarget ? mTargetNanos * DENSE_TARGET_FACTOR : mTargetNanos;
+            if(averageNanos > stepDownThreshold && index > 0) {
+                index--;
+            } else if(mDenseFormats && mFailedWindows >= FAILED_WINDOWS_BEFORE_STEP_UP && index < mInitialIndex) {
+                Camera.Size larger = mLadder.get(index + 1);
+                float scale = (float) (larger.width * larger.height) / (size.width * size.height);
+                if(averageNanos * scale < mTargetNanos * DENSE_TARGET_FACTOR * STEP_UP_HEADROOM) {
+                    index++;
+                }
+            }
+            if(index == mIndex) {
+                return;
+            }
+            mDenseTarget = index > mIndex;
+            mIndex = index;
+            mChangePending = true;
+        }
+        if(mListener != null) {
+            mListener.onPreviewSizeChanged();
+        }
+    }
+
+    private void resetWindow() {
+        mWindowNanos = 0;
+        mWindowSamples = 0;
+        mWindowResults = 0;
+    }
+
+    private static List<Camera.Size> buildLadder(List<Camera.Size> sizes, Camera.Size initialSize, float aspectTolerance) {
+        List<Camera.Size> ladder = new ArrayList<>(CameraUtils.getSizesWithAspectRatio(sizes, initialSize.width,
+                initialSize.height, aspectTolerance));
+        if(!ladder.contains(initialSize)) {
+            ladder.add(initialSize);
+        }
+        Collections.sort(ladder, new Comparator<Camera.Size>() {
+            @Override
+            public int compare(Camera.Size lhs, Camera.Size rhs) {
+                return lhs.width * lhs.height - rhs.width * rhs.height;
+            }
+        });
+        return ladder;
+    }
+
+    private static boolean containsSize(List<Camera.Size> sizes, Camera.Size size) {
+        return sizes != null && sizes.contains(size);
+    }
+}
@@ -1,10 +1,19 @@
 package me.dm7.barcodescanner.core;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 import android.support.annotation.ColorInt;
 import android.util.AttributeSet;
 import android.view.Gravity;
@@ -12,16 +21,48 @@ import android.view.View;
 import android.widget.FrameLayout;
 import android.widget.RelativeLayout;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
 public abstract class BarcodeScannerView extends FrameLayout implements Camera.PreviewCallback  {
+    private static final String TAG = "BarcodeScannerView";
+
+    public enum CameraBackend {
+        /** The Camera API, on every API level */
+        CAMERA1,
+        /** Camera2 from API 21 on, the Camera API below */
+        CAMERA2,
+        /** Camera2 where the device supports it natively, the Camera API otherwise */
+        AUTO
+    }
 
     private CameraWrapper mCameraWrapper;
-    private CameraPreview mPreview;
+    private CameraBackend mCameraBackend = CameraBackend.CAMERA1;
+    private volatile Camera2Session mCamera2Session;
+    private CameraSettings mCameraSettings;
+    private PreviewFpsController.Profile mFpsProfile = PreviewFpsController.Profile.CAMERA_DEFAULT;
+    private volatile PreviewFpsController mFpsController;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mStandbyTimeoutMillis;
+    // Camera that is kept open after stopCamera(), with its settings
+    private CameraWrapper mStandbyCamera;
+    private CameraSettings mStandbySettings;
+    private PreviewFpsController mStandbyFpsController;
+    private volatile CameraPreview mPreview;
     private IViewFinder mViewFinderView;
     private Rect mFramingRectInPreview;
-    private CameraHandlerThread mCameraHandlerThread;
+    private CameraSessionController mCameraController;
     private Boolean mFlashState;
     private boolean mAutofocusState = true;
     private boolean mShouldScaleToFill = true;
+    // Scaling mode the current view hierarchy was built for
+    private boolean mLayoutScaleToFill;
 
     private boolean mIsLaserEnabled = true;
     @ColorInt private int mLaserColor = getResources().getColor(R.color.viewfinder_laser);
@@ -35,6 +76,53 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
     private float mBorderAlpha = 1.0f;
     private int mViewFinderOffset = 0;
     private float mAspectTolerance = 0.1f;
+    private PreviewSizePolicy mPreviewSizePolicy;
+    private long mTargetDecodeMillis;
+    private volatile AdaptiveResolutionController mResolutionController;
+    private int mPreviewBufferCount = -1;
+    private volatile PreviewBufferPool mPreviewBufferPool;
+    private int mDecoderThreadCount = getDefaultDecoderThreadCount();
+    private volatile DecodeExecutor mDecodeExecutor;
+    private final AtomicBoolean mResultPending = new AtomicBoolean();
+    private volatile boolean mContinuousScanning;
+    private long mFrameDeadlineMillis;
+    private long mDecodeBudgetMillis;
+    private final AtomicLong mDroppedFrameCount = new AtomicLong();
+    private final AtomicLong mAbortedFrameCount = new AtomicLong();
+    private final ResultDeduplicator mResultDeduplicator = new ResultDeduplicator();
+    private final ResultDispatcher mResultDispatcher = new ResultDispatcher();
+    // Start of the last resumeCameraPreview() until its first frame arrives, 0 otherwise
+    private volatile long mResumeStartNanos;
+    private volatile long mLastResumeLatencyNanos = -1;
+
+    private final DecodeExecutor.Callback mDecodeCallback = new DecodeExecutor.Callback() {
+        @Override
+        public void onFrameDecoded(PreviewFrame frame, boolean found) {
+            if(frame.isOverBudget()) {
+                mAbortedFrameCount.incrementAndGet();
+            }
+            PreviewFpsController fpsController = mFpsController;
+            if(fpsController != null) {
+                fpsController.onFrameDecoded(frame.getDecodeTimeNanos());
+            }
+            AdaptiveResolutionController resolutionController = mResolutionController;
+            if(resolutionController != null) {
+                resolutionController.onFrameDecoded(frame.getGeometry(), frame.getDecodeTimeNanos(), found);
+            }
+            releaseFrame(frame);
+        }
+
+        @Override
+        public void onFrameDropped(PreviewFrame frame) {
+            releaseFrame(frame);
+        }
+
+        @Override
+        public void onFrameExpired(PreviewFrame frame) {
+            mDroppedFrameCount.incrementAndGet();
+            releaseFrame(frame);
+        }
+    };
 
     public BarcodeScannerView(Context context) {
         super(context);
@@ -72,14 +160,47 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
 
     private void init() {
         mViewFinderView = createViewFinderView(getContext());
+        // Read while the view is being laid out, so that starting the camera finds it in memory
+        CameraCapabilitiesCache.getInstance(getContext()).preload();
     }
 
+    /**
+     * Binds the camera to the preview. The preview surface and the view hierarchy are only
+     * created the first time, and again if the scaling mode changed. After that the existing
+     * surface is reused, so restarting or switching the camera does not cost a new surface and
+     * a full layout pass.
+     */
     public final void setupLayout(CameraWrapper cameraWrapper) {
-        removeAllViews();
+        boolean createLayout = mPreview == null || mLayoutScaleToFill != mShouldScaleToFill;
+        if(createLayout) {
+            removeAllViews();
+            mPreview = new CameraPreview(getContext(), cameraWrapper, this);
+        } else {
+            mPreview.setCamera(cameraWrapper, this);
+        }
 
-        mPreview = new CameraPreview(getContext(), cameraWrapper, this);
+        mPreview.setCameraSettings(mCameraSettings);
+        mPreview.setFpsController(mFpsController);
+        if(mTargetDecodeMillis > 0) {
+            mResolutionController = new AdaptiveResolutionController(mPreviewSizePolicy, mTargetDecodeMillis,
+                    mResolutionListener);
+            mPreview.setPreviewSizePolicy(mResolutionController);
+        } else {
+            mResolutionController = null;
+            mPreview.setPreviewSizePolicy(mPreviewSizePolicy);
+        }
+        mPreview.setScanTarget(mViewFinderView, getFormatNames());
         mPreview.setAspectTolerance(mAspectTolerance);
         mPreview.setShouldScaleToFill(mShouldScaleToFill);
+        mPreview.setPreviewBufferPool(obtainPreviewBufferPool());
+
+        if(!createLayout) {
+            // Starts right away if the surface is still there, otherwise once it is back
+            mPreview.restartCameraPreview();
+            return;
+        }
+
+        mLayoutScaleToFill = mShouldScaleToFill;
         if (!mShouldScaleToFill) {
             RelativeLayout relativeLayout = new RelativeLayout(getContext());
             relativeLayout.setGravity(Gravity.CENTER);
@@ -173,15 +294,138 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
     }
 
     public void startCamera(int cameraId) {
-        if(mCameraHandlerThread == null) {
-            mCameraHandlerThread = new CameraHandlerThread(this);
+        CameraWrapper standbyCamera = mStandbyCamera;
+        if(standbyCamera != null) {
+            if(standbyCamera.mCameraId == cameraId) {
+                resumeFromStandby();
+                return;
+            }
+            releaseStandbyCamera();
+        }
+        if(useCamera2(cameraId)) {
+            startCamera2(cameraId);
+            return;
+        }
+        // The camera thread is shared, so the open queues behind the pending release of a previous session
+        if(mCameraController == null || !mCameraController.startCamera(cameraId)) {
+            mCameraController = new CameraSessionController(this);
+            mCameraController.startCamera(cameraId);
+        }
+    }
+
+    /**
+     * Camera API the camera is driven through. Defaults to {@link CameraBackend#CAMERA1}.
+     * With Camera2, frames are decoded straight from the luminance plane of the image, without
+     * copying them into callback buffers. The preview size policy, adaptive resolution, the fps
+     * profile, standby and {@link #getCameraSettings()} only apply to the Camera API.
+     * Takes effect the next time the camera is started.
+     */
+    public void setCameraBackend(CameraBackend cameraBackend) {
+        mCameraBackend = cameraBackend != null ? cameraBackend : CameraBackend.CAMERA1;
+    }
+
+    boolean useCamera2(int cameraId) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        switch (mCameraBackend) {
+            case CAMERA2:
+                return true;
+            case AUTO:
+                return Camera2Session.isSupported(getContext(), cameraId);
+            default:
+                return false;
         }
-        mCameraHandlerThread.startCamera(cameraId);
+    }
+
+    private void startCamera2(int cameraId) {
+        // One frame per decoder, one waiting, and two for the camera to fill and drain
+        Camera2Session session = new Camera2Session(getContext(), cameraId, mDecoderThreadCount + 3, mCamera2Listener);
+        mCamera2Session = session;
+        if(mCameraController == null || !mCameraController.startCamera(session)) {
+            mCameraController = new CameraSessionController(this);
+            mCameraController.startCamera(session);
+        }
+    }
+
+    private final Camera2Session.Listener mCamera2Listener = new Camera2Session.Listener() {
+        @Override
+        public void onCameraOpened(Camera2Session session) {
+            if(session == mCamera2Session) {
+                setupCamera2Preview(session);
+            }
+        }
+
+        @Override
+        public void onCameraError(Camera2Session session) {
+            if(session == mCamera2Session) {
+                Log.e(TAG, "Camera2 session failed");
+                stopCamera();
+            }
+        }
+
+        @Override
+        public void onFrameAvailable(Camera2Session session, ByteBuffer luminance, int rowStride, Runnable release) {
+            recordResumeLatency();
+            DecodeExecutor decodeExecutor = mDecodeExecutor;
+            FrameGeometry geometry = decodeExecutor != null && !mResultPending.get() ? getFrameGeometry() : null;
+            if(geometry == null || geometry.getFramingRect() == null) {
+                release.run();
+                return;
+            }
+            decodeExecutor.submit(new PreviewFrame(luminance, rowStride, geometry, System.nanoTime(), release));
+        }
+    };
+
+    private void setupCamera2Preview(Camera2Session session) {
+        mCameraWrapper = null;
+        mCameraSettings = null;
+        mFpsController = null;
+        startDecoding();
+        setupLayout(null);
+        mResolutionController = null;
+        mPreview.setPreviewBufferPool(null);
+
+        int width = getWidth();
+        int height = getHeight();
+        if(width == 0 || height == 0) {
+            Point screenResolution = DisplayUtils.getScreenResolution(getContext());
+            width = screenResolution.x;
+            height = screenResolution.y;
+        }
+        if(DisplayUtils.getScreenOrientation(getContext()) == Configuration.ORIENTATION_PORTRAIT) {
+            int portraitWidth = height;
+            height = width;
+            width = portraitWidth;
+        }
+        Point previewSize = session.selectPreviewSize(width, height, mAspectTolerance);
+        if(previewSize == null) {
+            Log.e(TAG, "Camera2 reports no usable preview size");
+            stopCamera();
+            return;
+        }
+        mPreview.setupExternalPreview(previewSize.x, previewSize.y, ImageFormat.YUV_420_888,
+                session.getFacing(), session.getSensorOrientation());
+        session.attachSurface(mPreview.getHolder());
+        mViewFinderView.setupViewFinder();
+        if(mFlashState != null) {
+            setFlash(mFlashState);
+        }
+        setAutoFocus(mAutofocusState);
     }
 
     public void setupCameraPreview(CameraWrapper cameraWrapper) {
         mCameraWrapper = cameraWrapper;
+        mCameraSettings = null;
+        mFpsController = null;
         if(mCameraWrapper != null) {
+            // Recorded on the camera thread when the camera was opened
+            CameraCapabilities capabilities = mCameraWrapper.mCameraId != -1
+                    ? CameraCapabilitiesCache.getInstance(getContext()).getCapabilities(mCameraWrapper.mCameraId) : null;
+            mCameraSettings = new CameraSettings(mCameraWrapper.mCamera,
+                    mCameraController != null ? mCameraController.getHandler() : null, capabilities);
+            mFpsController = new PreviewFpsController(mCameraSettings, mFpsProfile, mDecoderThreadCount);
+            startDecoding();
             setupLayout(mCameraWrapper);
             mViewFinderView.setupViewFinder();
             if(mFlashState != null) {
@@ -192,34 +436,212 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
     }
 
     public void startCamera() {
-        startCamera(CameraUtils.getDefaultCameraId());
+        if(CameraCapabilitiesCache.getInstance(getContext()).isLoaded()) {
+            startCamera(CameraUtils.getDefaultCameraId(getContext()));
+            return;
+        }
+        // Until the cache file has been read the lookup would query every camera, do it on the camera thread
+        if(mCameraController == null || !mCameraController.startDefaultCamera()) {
+            mCameraController = new CameraSessionController(this);
+            mCameraController.startDefaultCamera();
+        }
     }
 
     public void stopCamera() {
-        if(mCameraWrapper != null) {
-            mPreview.stopCameraPreview();
-            mPreview.setCamera(null, null);
-            mCameraWrapper.mCamera.release();
-            mCameraWrapper = null;
+        stopCamera(null);
+    }
+
+    /**
+     * Stops the preview and releases the camera on the camera thread, so that the release does
+     * not block the UI thread. A {@link #startCamera()} that follows opens the camera only once
+     * it has been released.
+     *
+     * @param onStopped runs on the main thread once the camera has been released, may be null
+     */
+    public void stopCamera(Runnable onStopped) {
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            mCamera2Session = null;
+            session.detachSurface();
+            if(mPreview != null) {
+                mPreview.detachCamera();
+            }
+            stopDecoding();
+            mCameraController.stopCamera(session, onStopped);
+            mCameraController = null;
+            return;
+        }
+        if(mStandbyTimeoutMillis > 0 && mCameraWrapper != null && mCameraController != null) {
+            enterStandby();
+            if(onStopped != null) {
+                onStopped.run();
+            }
+            return;
         }
-        if(mCameraHandlerThread != null) {
-            mCameraHandlerThread.quit();
-            mCameraHandlerThread = null;
+        if(mStandbyCamera != null && mCameraWrapper == null) {
+            // Already in standby
+            if(onStopped != null) {
+                onStopped.run();
+            }
+            return;
+        }
+
+        CameraWrapper cameraWrapper = mCameraWrapper;
+        mCameraWrapper = null;
+        mCameraSettings = null;
+        mFpsController = null;
+        if(cameraWrapper != null) {
+            mPreview.detachCamera();
+        }
+        stopDecoding();
+        if(mPreviewBufferPool != null) {
+            // Keep the buffers around, the next session most likely uses the same preview size
+            mPreviewBufferPool.detach();
+        }
+        Camera camera = cameraWrapper != null ? cameraWrapper.mCamera : null;
+        if(mCameraController != null) {
+            // Also cancels an open that is still pending when there is no camera yet
+            mCameraController.stopCamera(camera, onStopped);
+            mCameraController = null;
+        } else {
+            // Set up through setupCameraPreview() without a camera thread
+            if(camera != null) {
+                camera.stopPreview();
+                camera.release();
+            }
+            if(onStopped != null) {
+                onStopped.run();
+            }
         }
     }
 
+    /**
+     * Keeps the camera open with the preview stopped for this long after {@link #stopCamera()},
+     * so that a {@link #startCamera()} of the same camera within that time does not have to open
+     * it again. The camera is released earlier when the system asks to trim memory.
+     * 0, the default, releases the camera right away. In standby the callback passed to
+     * {@link #stopCamera(Runnable)} runs once the preview has stopped.
+     */
+    public void setStandbyTimeout(long standbyTimeoutMillis) {
+        mStandbyTimeoutMillis = Math.max(0, standbyTimeoutMillis);
+        if(mStandbyTimeoutMillis == 0) {
+            releaseStandbyCamera();
+        }
+    }
+
+    private void enterStandby() {
+        mPreview.stopCameraPreview();
+        stopDecoding();
+        mStandbyCamera = mCameraWrapper;
+        mStandbySettings = mCameraSettings;
+        mStandbyFpsController = mFpsController;
+        mCameraWrapper = null;
+        mCameraSettings = null;
+        mFpsController = null;
+        mMainHandler.postDelayed(mStandbyTimeout, mStandbyTimeoutMillis);
+        getContext().getApplicationContext().registerComponentCallbacks(mTrimMemoryCallbacks);
+    }
+
+    private void resumeFromStandby() {
+        mCameraWrapper = mStandbyCamera;
+        mCameraSettings = mStandbySettings;
+        mFpsController = mStandbyFpsController;
+        leaveStandby();
+
+        startDecoding();
+        mPreview.restartCameraPreview();
+        if(mFlashState != null) {
+            setFlash(mFlashState);
+        }
+        setAutoFocus(mAutofocusState);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // Nothing would resume a camera in standby anymore, don't keep it open until the timeout
+        releaseStandbyCamera();
+    }
+
+    private void releaseStandbyCamera() {
+        CameraWrapper standbyCamera = mStandbyCamera;
+        if(standbyCamera == null) {
+            return;
+        }
+        leaveStandby();
+        mPreview.detachCamera();
+        if(mPreviewBufferPool != null) {
+            mPreviewBufferPool.detach();
+        }
+        mCameraController.stopCamera(standbyCamera.mCamera, null);
+        mCameraController = null;
+    }
+
+    private void leaveStandby() {
+        mStandbyCamera = null;
+        mStandbySettings = null;
+        mStandbyFpsController = null;
+        mMainHandler.removeCallbacks(mStandbyTimeout);
+        getContext().getApplicationContext().unregisterComponentCallbacks(mTrimMemoryCallbacks);
+    }
+
+    private final Runnable mStandbyTimeout = new Runnable() {
+        @Override
+        public void run() {
+            releaseStandbyCamera();
+        }
+    };
+
+    private final ComponentCallbacks2 mTrimMemoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            releaseStandbyCamera();
+        }
+
+        @Override
+        public void onLowMemory() {
+            releaseStandbyCamera();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
     public void stopCameraPreview() {
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            session.setPaused(true);
+            return;
+        }
         if(mPreview != null) {
             mPreview.stopCameraPreview();
         }
     }
 
     protected void resumeCameraPreview() {
+        mResultPending.set(false);
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            mResumeStartNanos = System.nanoTime();
+            session.setPaused(false);
+            return;
+        }
         if(mPreview != null) {
-            mPreview.showCameraPreview();
+            mResumeStartNanos = System.nanoTime();
+            mPreview.resumeCameraPreview();
         }
     }
 
+    /**
+     * Time from the last call to resumeCameraPreview() until the first preview frame arrived,
+     * in milliseconds, or -1 if no frame has arrived after a resume yet.
+     */
+    public float getLastResumeLatencyMillis() {
+        long latencyNanos = mLastResumeLatencyNanos;
+        return latencyNanos < 0 ? -1 : latencyNanos / 1000000f;
+    }
+
     public synchronized Rect getFramingRectInPreview(int previewWidth, int previewHeight) {
         if (mFramingRectInPreview == null) {
             Rect framingRect = mViewFinderView.getFramingRect();
@@ -248,50 +670,67 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
 
     public void setFlash(boolean flag) {
         mFlashState = flag;
-        if(mCameraWrapper != null && CameraUtils.isFlashSupported(mCameraWrapper.mCamera)) {
-
-            Camera.Parameters parameters = mCameraWrapper.mCamera.getParameters();
-            if(flag) {
-                if(parameters.getFlashMode().equals(Camera.Parameters.FLASH_MODE_TORCH)) {
-                    return;
-                }
-                parameters.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
-            } else {
-                if(parameters.getFlashMode().equals(Camera.Parameters.FLASH_MODE_OFF)) {
-                    return;
-                }
-                parameters.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            session.setTorch(flag);
+            return;
+        }
+        CameraSettings cameraSettings = mCameraSettings;
+        if(cameraSettings != null && cameraSettings.isFlashSupported()) {
+            String flashMode = flag ? Camera.Parameters.FLASH_MODE_TORCH : Camera.Parameters.FLASH_MODE_OFF;
+            if(flashMode.equals(cameraSettings.getFlashMode())) {
+                return;
             }
-            mCameraWrapper.mCamera.setParameters(parameters);
+            cameraSettings.edit().setFlashMode(flashMode).apply();
         }
     }
 
     public boolean getFlash() {
-        if(mCameraWrapper != null && CameraUtils.isFlashSupported(mCameraWrapper.mCamera)) {
-            Camera.Parameters parameters = mCameraWrapper.mCamera.getParameters();
-            if(parameters.getFlashMode().equals(Camera.Parameters.FLASH_MODE_TORCH)) {
-                return true;
-            } else {
-                return false;
-            }
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            return session.isTorchOn();
+        }
+        CameraSettings cameraSettings = mCameraSettings;
+        if(cameraSettings != null && cameraSettings.isFlashSupported()) {
+            return Camera.Parameters.FLASH_MODE_TORCH.equals(cameraSettings.getFlashMode());
         }
         return false;
     }
 
     public void toggleFlash() {
-        if(mCameraWrapper != null && CameraUtils.isFlashSupported(mCameraWrapper.mCamera)) {
-            Camera.Parameters parameters = mCameraWrapper.mCamera.getParameters();
-            if(parameters.getFlashMode().equals(Camera.Parameters.FLASH_MODE_TORCH)) {
-                parameters.setFlashMode(Camera.Parameters.FLASH_MODE_OFF);
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            if(session.isFlashSupported()) {
+                setFlash(!session.isTorchOn());
+            }
+            return;
+        }
+        CameraSettings cameraSettings = mCameraSettings;
+        if(cameraSettings != null && cameraSettings.isFlashSupported()) {
+            if(Camera.Parameters.FLASH_MODE_TORCH.equals(cameraSettings.getFlashMode())) {
+                cameraSettings.edit().setFlashMode(Camera.Parameters.FLASH_MODE_OFF).apply();
             } else {
-                parameters.setFlashMode(Camera.Parameters.FLASH_MODE_TORCH);
+                cameraSettings.edit().setFlashMode(Camera.Parameters.FLASH_MODE_TORCH).apply();
             }
-            mCameraWrapper.mCamera.setParameters(parameters);
         }
     }
 
+    /**
+     * Parameters of the open camera, or null if there is none. Reads are served from a cached
+     * snapshot, changes queued with {@link CameraSettings#edit()} are applied together on the
+     * camera thread.
+     */
+    public CameraSettings getCameraSettings() {
+        return mCameraSettings;
+    }
+
     public void setAutoFocus(boolean state) {
         mAutofocusState = state;
+        Camera2Session session = mCamera2Session;
+        if(session != null) {
+            session.setAutoFocus(state);
+            return;
+        }
         if(mPreview != null) {
             mPreview.setAutoFocus(state);
         }
@@ -305,34 +744,377 @@ public abstract class BarcodeScannerView extends FrameLayout implements Camera.P
         mAspectTolerance = aspectTolerance;
     }
 
+    /**
+     * Strategy that picks the preview size, e.g. {@link DecodeThroughputSizePolicy} to favour
+     * decode speed over picture quality. Defaults to {@link DisplayFitSizePolicy}.
+     * Takes effect the next time the camera is started.
+     */
+    public void setPreviewSizePolicy(PreviewSizePolicy previewSizePolicy) {
+        mPreviewSizePolicy = previewSizePolicy;
+    }
+
+    /**
+     * Lets the preview size follow the measured decode time: it steps down while decoding a frame
+     * takes longer than targetDecodeMillis, and back up if dense codes keep failing to decode.
+     * The size picked by the preview size policy is the starting point. 0, the default, keeps
+     * the preview size fixed. Takes effect the next time the camera is started.
+     */
+    public void setAdaptiveResolution(long targetDecodeMillis) {
+        mTargetDecodeMillis = Math.max(0, targetDecodeMillis);
+    }
+
+    private final AdaptiveResolutionController.Listener mResolutionListener = new AdaptiveResolutionController.Listener() {
+        @Override
+        public void onPreviewSizeChanged() {
+            post(mRestartPreview);
+        }
+    };
+
+    // Applies a new preview size with a single restart, or on the next resume if the preview is paused
+    private final Runnable mRestartPreview = new Runnable() {
+        @Override
+        public void run() {
+            CameraPreview preview = mPreview;
+            if(preview == null || mCameraWrapper == null) {
+                return;
+            }
+            if(preview.isPreviewing()) {
+                preview.stopCameraPreview();
+                preview.showCameraPreview();
+            } else {
+                preview.invalidateSession();
+            }
+        }
+    };
+
+    /**
+     * How the preview fps range is chosen. The default,
+     * {@link PreviewFpsController.Profile#CAMERA_DEFAULT}, keeps the range the camera starts with.
+     * {@link PreviewFpsController.Profile#ADAPTIVE} lowers it to what the decode threads can keep
+     * up with. Takes effect the next time the camera is started.
+     */
+    public void setFpsProfile(PreviewFpsController.Profile fpsProfile) {
+        mFpsProfile = fpsProfile != null ? fpsProfile : PreviewFpsController.Profile.CAMERA_DEFAULT;
+    }
+
+    /**
+     * Names of the barcode formats that are scanned for, used to pick a preview size that is
+     * dense enough for them. Empty by default.
+     */
+    protected Collection<String> getFormatNames() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Number of preview buffers that are cycled between the camera and the decoders. Set to 0 to
+     * fall back to one shot preview callbacks, which allocate a new buffer for every frame.
+     * By default there is one buffer per decoder thread, plus one waiting and one in the camera.
+     * Takes effect the next time the camera is started.
+     */
+    public void setPreviewBufferCount(int previewBufferCount) {
+        mPreviewBufferCount = Math.max(0, previewBufferCount);
+    }
+
+    /**
+     * Number of threads that decode consecutive frames in parallel, each with its own decoder.
+     * Defaults to one less than the number of available processors, at most 4.
+     * Takes effect the next time the camera is started.
+     */
+    public void setDecoderThreadCount(int decoderThreadCount) {
+        mDecoderThreadCount = Math.max(1, decoderThreadCount);
+    }
+
+    /**
+     * In continuous mode the preview keeps running after a result and every result is handed to
+     * the result handler, without the need to call resumeCameraPreview().
+     */
+    public void setContinuousScanning(boolean continuousScanning) {
+        mContinuousScanning = continuousScanning;
+        if(continuousScanning) {
+            mResultPending.set(false);
+            mResultDeduplicator.clear();
+        }
+    }
+
+    public boolean isContinuousScanning() {
+        return mContinuousScanning;
+    }
+
+    /**
+     * In continuous mode a code that has been handed to the result handler is not handed over
+     * again until this much time has passed. Defaults to
+     * {@link ResultDeduplicator#DEFAULT_WINDOW_MILLIS}, 0 hands over every result.
+     */
+    public void setDuplicateSuppressionWindow(long windowMillis) {
+        mResultDeduplicator.setWindow(windowMillis);
+    }
+
+    /**
+     * Executor that results are handed to the result handler on. Defaults to null, which
+     * delivers them on the main thread. In continuous mode results go to the executor straight
+     * from the decode threads; otherwise the preview is stopped on the main thread first.
+     */
+    public void setResultExecutor(Executor executor) {
+        mResultDispatcher.setExecutor(executor);
+    }
+
+    /**
+     * Frames that have waited longer than this since they arrived from the camera are dropped
+     * instead of decoded. 0, the default, decodes every frame that reaches a decoder.
+     */
+    public void setFrameDeadline(long deadlineMillis) {
+        mFrameDeadlineMillis = deadlineMillis;
+        DecodeExecutor decodeExecutor = mDecodeExecutor;
+        if(decodeExecutor != null) {
+            decodeExecutor.setFrameDeadline(deadlineMillis);
+        }
+    }
+
+    /**
+     * Time that may be spent decoding a single frame. Decoders check it between stages, e.g.
+     * before the inverted pass of ZXing, and give up once it is used up. 0, the default, means
+     * no limit.
+     */
+    public void setDecodeBudget(long budgetMillis) {
+        mDecodeBudgetMillis = budgetMillis;
+        DecodeExecutor decodeExecutor = mDecodeExecutor;
+        if(decodeExecutor != null) {
+            decodeExecutor.setDecodeBudget(budgetMillis);
+        }
+    }
+
+    /** Number of frames dropped because they were older than the frame deadline */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount.get();
+    }
+
+    /** Number of frames whose decoding was given up because the decode budget was used up */
+    public long getAbortedFrameCount() {
+        return mAbortedFrameCount.get();
+    }
+
+    public void resetFrameCounts() {
+        mDroppedFrameCount.set(0);
+        mAbortedFrameCount.set(0);
+    }
+
+    private static int getDefaultDecoderThreadCount() {
+        // Leave a core for the camera and the UI
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(4, processors - 1));
+    }
+
+    private PreviewBufferPool obtainPreviewBufferPool() {
+        int bufferCount = mPreviewBufferCount;
+        if(bufferCount < 0) {
+            bufferCount = Math.max(PreviewBufferPool.DEFAULT_BUFFER_COUNT, mDecoderThreadCount + 2);
+        }
+        PreviewBufferPool bufferPool = mPreviewBufferPool;
+        if(bufferPool != null && bufferPool.getBufferCount() != bufferCount) {
+            bufferPool.detach();
+            bufferPool = null;
+        }
+        if(bufferPool == null && bufferCount > 0) {
+            bufferPool = new PreviewBufferPool(this, bufferCount);
+        }
+        mPreviewBufferPool = bufferPool;
+        return bufferPool;
+    }
+
+    /**
+     * Creates a decoder that preview frames are handed to on a decode thread. It is called once
+     * per decode thread, so every decoder can keep its own reader. Scanner views that do their
+     * own decoding in {@link #onPreviewFrame(byte[], Camera)} return null.
+     */
+    protected FrameDecoder createFrameDecoder() {
+        return null;
+    }
+
+    private void startDecoding() {
+        mResultPending.set(false);
+        if(mDecodeExecutor == null) {
+            List<FrameDecoder> decoders = new ArrayList<>();
+            for(int i = 0; i < mDecoderThreadCount; i++) {
+                FrameDecoder decoder = createFrameDecoder();
+                if(decoder == null) {
+                    return;
+                }
+                decoders.add(decoder);
+            }
+            DecodeExecutor decodeExecutor = new DecodeExecutor(decoders, mDecodeCallback);
+            decodeExecutor.setFrameDeadline(mFrameDeadlineMillis);
+            decodeExecutor.setDecodeBudget(mDecodeBudgetMillis);
+            mDecodeExecutor = decodeExecutor;
+        }
+    }
+
+    private void stopDecoding() {
+        DecodeExecutor decodeExecutor = mDecodeExecutor;
+        mDecodeExecutor = null;
+        if(decodeExecutor != null) {
+            decodeExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Hands the frame over to the decode thread and asks the camera for the next one right away,
+     * so a slow decode does not hold up the camera thread.
+     */
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if(data != null) {
+            recordResumeLatency();
+        }
+
+        DecodeExecutor decodeExecutor = mDecodeExecutor;
+        if(data == null || decodeExecutor == null || mResultPending.get()) {
+            recycleFrame(data);
+            return;
+        }
+
+        FrameGeometry geometry = getFrameGeometry();
+        if(geometry == null || geometry.getFramingRect() == null) {
+            requestNextFrame(data, camera);
+            return;
+        }
+
+        decodeExecutor.submit(new PreviewFrame(data, geometry, System.nanoTime()));
+        if(mPreviewBufferPool == null) {
+            // In buffered mode the next frame comes once a buffer has been recycled
+            camera.setOneShotPreviewCallback(this);
+        }
+    }
+
+    private void recordResumeLatency() {
+        long resumeStartNanos = mResumeStartNanos;
+        if(resumeStartNanos != 0) {
+            mResumeStartNanos = 0;
+            mLastResumeLatencyNanos = System.nanoTime() - resumeStartNanos;
+        }
+    }
+
+    /**
+     * Returns true if the same code has already been handed over within the duplicate
+     * suppression window. Only applies in continuous mode, otherwise the preview stops after the
+     * first result anyway. Decoders call it before {@link #postResult(ResultDispatcher.Delivery)}.
+     */
+    protected boolean isDuplicateResult(Object format, String contents) {
+        if(!mContinuousScanning) {
+            return false;
+        }
+        return !mResultDeduplicator.accept(format, contents, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Hands the delivery of a result to the main thread or the result executor, see
+     * {@link ResultDispatcher.Delivery}. Only the first result is posted, the
+     * frames that are still being decoded are cancelled and frames that arrive until the preview
+     * is resumed are not decoded anymore. In continuous mode every result is posted and decoding
+     * goes on.
+     *
+     * @return false if another frame already produced a result
+     */
+    protected boolean postResult(ResultDispatcher.Delivery delivery) {
+        if(!mContinuousScanning) {
+            if(!mResultPending.compareAndSet(false, true)) {
+                return false;
+            }
+            DecodeExecutor decodeExecutor = mDecodeExecutor;
+            if(decodeExecutor != null) {
+                decodeExecutor.cancel();
+            }
+        }
+        mResultDispatcher.dispatch(delivery);
+        return true;
+    }
+
+    /**
+     * Call once a preview frame has been processed and the next one is wanted. Gives the frame's
+     * buffer back to the camera in buffered mode, re-arms the one shot callback otherwise.
+     */
+    public void requestNextFrame(byte[] data, Camera camera) {
+        PreviewBufferPool bufferPool = mPreviewBufferPool;
+        if(bufferPool != null) {
+            bufferPool.recycle(data);
+        } else {
+            camera.setOneShotPreviewCallback(this);
+        }
+    }
+
+    /**
+     * Call once a preview frame has been processed and no further frames are wanted, e.g. after
+     * a result has been found.
+     */
+    public void recycleFrame(byte[] data) {
+        PreviewBufferPool bufferPool = mPreviewBufferPool;
+        if(bufferPool != null) {
+            bufferPool.recycle(data);
+        }
+    }
+
+    private void releaseFrame(PreviewFrame frame) {
+        if(frame.getData() != null) {
+            recycleFrame(frame.getData());
+        } else {
+            frame.release();
+        }
+    }
+
+    /**
+     * Snapshot of the frame layout of the current preview session including the framing rect,
+     * or null if the preview has not been set up yet. Safe to call from the camera thread.
+     */
+    public FrameGeometry getFrameGeometry() {
+        CameraPreview preview = mPreview;
+        if(preview == null) {
+            return null;
+        }
+        FrameGeometry geometry = preview.getFrameGeometry();
+        if(geometry != null && geometry.getFramingRect() == null) {
+            Rect framingRect;
+            synchronized (this) {
+                // New snapshot, so the cached rect may belong to an old preview size or orientation
+                mFramingRectInPreview = null;
+                framingRect = getFramingRectInPreview(geometry.getFrameWidth(), geometry.getFrameHeight());
+            }
+            if(framingRect != null) {
+                geometry = preview.setFramingRect(geometry, framingRect);
+                preview.updateFocusAreas(geometry);
+                Camera2Session session = mCamera2Session;
+                if(session != null) {
+                    session.setFocusRegion(geometry);
+                }
+            }
+        }
+        return geometry;
+    }
+
     public byte[] getRotatedData(byte[] data, Camera camera) {
         Camera.Parameters parameters = camera.getParameters();
         Camera.Size size = parameters.getPreviewSize();
-        int width = size.width;
-        int height = size.height;
+        return rotateData(data, size.width, size.height, getRotationCount());
+    }
 
-        int rotationCount = getRotationCount();
+    public byte[] getRotatedData(byte[] data, FrameGeometry geometry) {
+        return rotateData(data, geometry.getPreviewWidth(), geometry.getPreviewHeight(), geometry.getFrameRotationCount());
+    }
 
-        if(rotationCount == 1 || rotationCount == 3) {
-            for (int i = 0; i < rotationCount; i++) {
-                byte[] rotatedData = new byte[data.length];
-                for (int y = 0; y < height; y++) {
-                    for (int x = 0; x < width; x++)
-                        rotatedData[x * height + height - y - 1] = data[x + y * width];
-                }
-                data = rotatedData;
-                int tmp = width;
-                width = height;
-                height = tmp;
-            }
+    private static byte[] rotateData(byte[] data, int width, int height, int rotationCount) {
+        if(rotationCount % 4 == 0) {
+            return data;
         }
 
-        return data;
+        byte[] rotatedData = new byte[data.length];
+        RotationUtils.rotate(data, width, height, rotationCount, rotatedData);
+        return rotatedData;
     }
 
     public int getRotationCount() {
+        FrameGeometry geometry = mPreview.getFrameGeometry();
+        if(geometry != null) {
+            return geometry.getRotationCount();
+        }
         int displayOrientation = mPreview.getDisplayOrientation();
         return displayOrientation / 90;
     }
 }
-
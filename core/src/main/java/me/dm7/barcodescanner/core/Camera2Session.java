@@ -0,0 +1,605 @@
+package me.dm7.barcodescanner.core;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Camera backend on top of Camera2. The preview is drawn to the surface of the
+ * {@link CameraPreview} and frames are read through an {@link ImageReader} in
+ * {@link ImageFormat#YUV_420_888}, whose Y plane is handed to the decoders as it is, without
+ * a conversion to NV21.
+ * <p>The camera is opened, configured and closed on the camera thread, which frames arrive on
+ * as well. Flash, autofocus and the focus and metering region can be changed from any thread.</p>
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Session {
+    private static final String TAG = "Camera2Session";
+    // Largest YUV stream that is guaranteed to work next to a preview stream on every device
+    private static final int MAX_PREVIEW_PIXELS = 1920 * 1080;
+
+    public interface Listener {
+        /** Called on the main thread once the camera is open and a preview size can be chosen */
+        void onCameraOpened(Camera2Session session);
+
+        /** Called on the main thread if the camera could not be opened or went away */
+        void onCameraError(Camera2Session session);
+
+        /**
+         * Called on the camera thread for every frame. The luminance buffer is only valid until
+         * release has run, which has to happen exactly once.
+         */
+        void onFrameAvailable(Camera2Session session, ByteBuffer luminance, int rowStride, Runnable release);
+    }
+
+    private final CameraManager mManager;
+    private final int mCameraIndex;
+    private final int mMaxImages;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile Handler mHandler;
+    private volatile boolean mClosed;
+
+    // Read when the camera is opened, before onCameraOpened
+    private volatile int mFacing;
+    private volatile int mSensorOrientation;
+    private volatile Size[] mOutputSizes;
+    private volatile Rect mActiveArray;
+    private volatile boolean mFlashSupported;
+    private volatile boolean mContinuousFocusSupported;
+    private volatile boolean mAutoFocusSupported;
+    private volatile int mMaxFocusRegions;
+    private volatile int mMaxMeteringRegions;
+
+    // Camera thread only
+    private CameraDevice mDevice;
+    private CameraCaptureSession mCaptureSession;
+    private FrameReader mFrameReader;
+    private Surface mPreviewSurface;
+
+    // Main thread only
+    private SurfaceHolder mSurfaceHolder;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    // Requested state, applied to the repeating request on the camera thread
+    private volatile boolean mTorch;
+    private volatile boolean mAutoFocus = true;
+    private volatile boolean mPaused;
+    private volatile Rect mRegion;
+
+    /**
+     * @param cameraIndex index into the camera id list, the same index the Camera API uses, or
+     *                    -1 for the first back facing camera
+     * @param maxImages number of frames that may be held by the decoders at the same time, plus
+     *                  one for the camera
+     */
+    public Camera2Session(Context context, int cameraIndex, int maxImages, Listener listener) {
+        mManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        mCameraIndex = cameraIndex;
+        mMaxImages = Math.max(2, maxImages);
+        mListener = listener;
+    }
+
+    /**
+     * True if the camera is better served by Camera2 than by the Camera API. Devices whose
+     * Camera2 support is only a layer on top of the Camera API are left to the Camera API.
+     */
+    public static boolean isSupported(Context context, int cameraIndex) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        try {
+            CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            String cameraId = getCameraId(manager, cameraIndex);
+            if(cameraId == null) {
+                return false;
+            }
+            Integer level = manager.getCameraCharacteristics(cameraId).get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+            return level != null && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+        } catch(CameraAccessException | RuntimeException e) {
+            Log.w(TAG, "Could not query camera " + cameraIndex, e);
+            return false;
+        }
+    }
+
+    private static String getCameraId(CameraManager manager, int cameraIndex) throws CameraAccessException {
+        String[] cameraIds = manager.getCameraIdList();
+        if(cameraIndex >= 0) {
+            return cameraIndex < cameraIds.length ? cameraIds[cameraIndex] : null;
+        }
+        for(String cameraId : cameraIds) {
+            Integer facing = manager.getCameraCharacteristics(cameraId).get(CameraCharacteristics.LENS_FACING);
+            if(facing != null && facing == CameraMetadata.LENS_FACING_BACK) {
+                return cameraId;
+            }
+        }
+        return cameraIds.length > 0 ? cameraIds[0] : null;
+    }
+
+    /** Opens the camera. Called on the camera thread, with a handler of that thread. */
+    void open(Handler handler) {
+        mHandler = handler;
+        if(mClosed) {
+            return;
+        }
+        try {
+            String cameraId = getCameraId(mManager, mCameraIndex);
+            if(cameraId == null) {
+                notifyError();
+                return;
+            }
+            readCharacteristics(mManager.getCameraCharacteristics(cameraId));
+            mManager.openCamera(cameraId, mStateCallback, handler);
+        } catch(CameraAccessException | RuntimeException e) {
+            // Includes the SecurityException without the camera permission
+            Log.e(TAG, e.toString(), e);
+            notifyError();
+        }
+    }
+
+    private void readCharacteristics(CameraCharacteristics characteristics) {
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        mFacing = facing != null && facing == CameraMetadata.LENS_FACING_FRONT
+                ? Camera.CameraInfo.CAMERA_FACING_FRONT : Camera.CameraInfo.CAMERA_FACING_BACK;
+        Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        mSensorOrientation = sensorOrientation != null ? sensorOrientation : 90;
+        mActiveArray = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+
+        Boolean flashAvailable = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        mFlashSupported = flashAvailable != null && flashAvailable;
+        int[] afModes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        mContinuousFocusSupported = contains(afModes, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+        mAutoFocusSupported = contains(afModes, CameraMetadata.CONTROL_AF_MODE_AUTO);
+        Integer maxFocusRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        mMaxFocusRegions = maxFocusRegions != null ? maxFocusRegions : 0;
+        Integer maxMeteringRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        mMaxMeteringRegions = maxMeteringRegions != null ? maxMeteringRegions : 0;
+
+        // Sizes that work for both the reader and the preview surface
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        List<Size> sizes = new ArrayList<>();
+        if(map != null) {
+            Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+            List<Size> surfaceSizes = Arrays.asList(map.getOutputSizes(SurfaceHolder.class));
+            if(yuvSizes != null) {
+                for(Size size : yuvSizes) {
+                    if(surfaceSizes.contains(size) && size.getWidth() * size.getHeight() <= MAX_PREVIEW_PIXELS) {
+                        sizes.add(size);
+                    }
+                }
+            }
+        }
+        mOutputSizes = sizes.toArray(new Size[sizes.size()]);
+    }
+
+    private static boolean contains(int[] values, int value) {
+        if(values != null) {
+            for(int v : values) {
+                if(v == value) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice device) {
+            if(mClosed) {
+                device.close();
+                return;
+            }
+            mDevice = device;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(!mClosed) {
+                        mListener.onCameraOpened(Camera2Session.this);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice device) {
+            device.close();
+            if(device == mDevice) {
+                mDevice = null;
+            }
+            notifyError();
+        }
+
+        @Override
+        public void onError(CameraDevice device, int error) {
+            Log.e(TAG, "Camera error " + error);
+            onDisconnected(device);
+        }
+    };
+
+    private void notifyError() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!mClosed) {
+                    mListener.onCameraError(Camera2Session.this);
+                }
+            }
+        });
+    }
+
+    /** {@link Camera.CameraInfo#CAMERA_FACING_BACK} or {@link Camera.CameraInfo#CAMERA_FACING_FRONT} */
+    public int getFacing() {
+        return mFacing;
+    }
+
+    /** Clockwise rotation of the sensor image relative to the natural orientation of the device */
+    public int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    public boolean isFlashSupported() {
+        return mFlashSupported;
+    }
+
+    /**
+     * Picks the frame size whose height is closest to the height of the view, preferring the
+     * aspect ratio of the view, like {@link DisplayFitSizePolicy}. The view size is given in
+     * sensor orientation, i.e. landscape. Called on the main thread once the camera is open.
+     *
+     * @return the frame size, or null if the camera reports none
+     */
+    public Point selectPreviewSize(int viewWidth, int viewHeight, float aspectTolerance) {
+        Size[] sizes = mOutputSizes;
+        if(sizes == null || sizes.length == 0 || viewWidth <= 0 || viewHeight <= 0) {
+            return null;
+        }
+        double targetRatio = (double) viewWidth / viewHeight;
+        Size optimalSize = null;
+        int minDiff = Integer.MAX_VALUE;
+        for(Size size : sizes) {
+            double ratio = (double) size.getWidth() / size.getHeight();
+            if(Math.abs(ratio - targetRatio) > aspectTolerance) continue;
+            if(Math.abs(size.getHeight() - viewHeight) < minDiff) {
+                optimalSize = size;
+                minDiff = Math.abs(size.getHeight() - viewHeight);
+            }
+        }
+        if(optimalSize == null) {
+            for(Size size : sizes) {
+                if(Math.abs(size.getHeight() - viewHeight) < minDiff) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.getHeight() - viewHeight);
+                }
+            }
+        }
+        mPreviewWidth = optimalSize.getWidth();
+        mPreviewHeight = optimalSize.getHeight();
+        return new Point(mPreviewWidth, mPreviewHeight);
+    }
+
+    /**
+     * Starts the preview on the surface of the holder as soon as it has the size picked by
+     * {@link #selectPreviewSize(int, int, float)}. Called on the main thread.
+     */
+    public void attachSurface(SurfaceHolder holder) {
+        detachSurface();
+        mSurfaceHolder = holder;
+        holder.addCallback(mSurfaceCallback);
+        Surface surface = holder.getSurface();
+        Rect frame = holder.getSurfaceFrame();
+        if(surface != null && surface.isValid() && frame.width() == mPreviewWidth && frame.height() == mPreviewHeight) {
+            startCapture(surface);
+        }
+    }
+
+    public void detachSurface() {
+        if(mSurfaceHolder != null) {
+            mSurfaceHolder.removeCallback(mSurfaceCallback);
+            mSurfaceHolder = null;
+        }
+    }
+
+    private final SurfaceHolder.Callback mSurfaceCallback = new SurfaceHolder.Callback() {
+        @Override
+        public void surfaceCreated(SurfaceHolder holder) {
+        }
+
+        @Override
+        public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+            // Wait for the fixed size to be applied, the camera rejects surfaces of other sizes
+            if(width == mPreviewWidth && height == mPreviewHeight) {
+                startCapture(holder.getSurface());
+            }
+        }
+
+        @Override
+        public void surfaceDestroyed(SurfaceHolder holder) {
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    closeCaptureSession();
+                }
+            });
+        }
+    };
+
+    private void startCapture(final Surface surface) {
+        final int width = mPreviewWidth;
+        final int height = mPreviewHeight;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                createCaptureSession(surface, width, height);
+            }
+        });
+    }
+
+    private void createCaptureSession(Surface surface, int width, int height) {
+        if(mClosed || mDevice == null || !surface.isValid()) {
+            return;
+        }
+        closeCaptureSession();
+        mPreviewSurface = surface;
+        final FrameReader frameReader = new FrameReader(ImageReader.newInstance(width, height,
+                ImageFormat.YUV_420_888, mMaxImages));
+        frameReader.mReader.setOnImageAvailableListener(mImageListener, mHandler);
+        mFrameReader = frameReader;
+        try {
+            mDevice.createCaptureSession(Arrays.asList(surface, frameReader.mReader.getSurface()),
+                    new CameraCaptureSession.StateCallback() {
+                        @Override
+                        public void onConfigured(CameraCaptureSession session) {
+                            if(mClosed || frameReader != mFrameReader) {
+                                // Replaced by a newer session in the meantime
+                                session.close();
+                                return;
+                            }
+                            mCaptureSession = session;
+                            updateRequest();
+                        }
+
+                        @Override
+                        public void onConfigureFailed(CameraCaptureSession session) {
+                            Log.e(TAG, "Could not configure the capture session");
+                            if(frameReader == mFrameReader) {
+                                notifyError();
+                            }
+                        }
+                    }, mHandler);
+        } catch(CameraAccessException | RuntimeException e) {
+            Log.e(TAG, e.toString(), e);
+            notifyError();
+        }
+    }
+
+    private void closeCaptureSession() {
+        if(mCaptureSession != null) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if(mFrameReader != null) {
+            mFrameReader.close();
+            mFrameReader = null;
+        }
+        mPreviewSurface = null;
+    }
+
+    /** Closes the camera. Called on the camera thread. */
+    void close() {
+        mClosed = true;
+        closeCaptureSession();
+        if(mDevice != null) {
+            mDevice.close();
+            mDevice = null;
+        }
+    }
+
+    public void setTorch(boolean torch) {
+        mTorch = torch;
+        post(mUpdateRequest);
+    }
+
+    public boolean isTorchOn() {
+        return mFlashSupported && mTorch;
+    }
+
+    /** Switches between continuous autofocus and a fixed lens position */
+    public void setAutoFocus(boolean autoFocus) {
+        mAutoFocus = autoFocus;
+        post(mUpdateRequest);
+    }
+
+    /** Stops or restarts delivering frames, the preview freezes in the meantime */
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+        post(mUpdateRequest);
+    }
+
+    /** Points focus and metering at the framing rect of the geometry */
+    public void setFocusRegion(FrameGeometry geometry) {
+        Rect rect = geometry.getPreviewFramingRect();
+        Rect activeArray = mActiveArray;
+        if(rect == null || activeArray == null || mMaxFocusRegions == 0 && mMaxMeteringRegions == 0) {
+            return;
+        }
+        // Frames are the centre of the active array, cropped to their aspect ratio
+        int width = geometry.getPreviewWidth();
+        int height = geometry.getPreviewHeight();
+        int cropWidth = activeArray.width();
+        int cropHeight = activeArray.height();
+        if((long) cropWidth * height > (long) cropHeight * width) {
+            cropWidth = cropHeight * width / height;
+        } else {
+            cropHeight = cropWidth * height / width;
+        }
+        int left = activeArray.left + (activeArray.width() - cropWidth) / 2;
+        int top = activeArray.top + (activeArray.height() - cropHeight) / 2;
+        Rect region = new Rect(left + rect.left * cropWidth / width, top + rect.top * cropHeight / height,
+                left + rect.right * cropWidth / width, top + rect.bottom * cropHeight / height);
+        if(region.isEmpty() || region.equals(mRegion)) {
+            return;
+        }
+        mRegion = region;
+        post(mUpdateRequest);
+    }
+
+    private final Runnable mUpdateRequest = new Runnable() {
+        @Override
+        public void run() {
+            updateRequest();
+        }
+    };
+
+    private void updateRequest() {
+        CameraCaptureSession captureSession = mCaptureSession;
+        if(captureSession == null || mDevice == null) {
+            return;
+        }
+        try {
+            if(mPaused) {
+                captureSession.stopRepeating();
+                return;
+            }
+            CaptureRequest.Builder builder = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+            builder.addTarget(mPreviewSurface);
+            builder.addTarget(mFrameReader.mReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            if(mAutoFocus && mContinuousFocusSupported) {
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            } else if(mAutoFocusSupported) {
+                // Without a trigger the lens stays where it is
+                builder.set(CaptureRequest.CONTROL_AF_MODE, CameraMetadata.CONTROL_AF_MODE_AUTO);
+            }
+            Rect region = mRegion;
+            if(region != null) {
+                MeteringRectangle[] regions = { new MeteringRectangle(region, MeteringRectangle.METERING_WEIGHT_MAX) };
+                if(mMaxFocusRegions > 0) {
+                    builder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+                }
+                if(mMaxMeteringRegions > 0) {
+                    builder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+                }
+            }
+            if(mFlashSupported) {
+                builder.set(CaptureRequest.FLASH_MODE, mTorch ? CameraMetadata.FLASH_MODE_TORCH : CameraMetadata.FLASH_MODE_OFF);
+            }
+            captureSession.setRepeatingRequest(builder.build(), null, mHandler);
+        } catch(CameraAccessException | RuntimeException e) {
+            Log.e(TAG, e.toString(), e);
+        }
+    }
+
+    private final ImageReader.OnImageAvailableListener mImageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            FrameReader frameReader = mFrameReader;
+            if(frameReader == null || frameReader.mReader != reader) {
+                return;
+            }
+            Image image = frameReader.acquire();
+            if(image == null) {
+                return;
+            }
+            Image.Plane luminance = image.getPlanes()[0];
+            mListener.onFrameAvailable(Camera2Session.this, luminance.getBuffer(), luminance.getRowStride(),
+                    new ReleaseImage(frameReader, image));
+        }
+    };
+
+    private void post(Runnable runnable) {
+        Handler handler = mHandler;
+        if(handler != null) {
+            handler.post(runnable);
+        }
+    }
+
+    // The reader is closed once the last image that is out with the decoders comes back, since
+    // closing it frees the memory of those images
+    private static class FrameReader {
+        private final ImageReader mReader;
+        private int mOpenImages;
+        private boolean mClosed;
+
+        FrameReader(ImageReader reader) {
+            mReader = reader;
+        }
+
+        synchronized Image acquire() {
+            if(mClosed) {
+                return null;
+            }
+            Image image;
+            try {
+                image = mReader.acquireLatestImage();
+            } catch(IllegalStateException e) {
+                // All images are still with the decoders
+                return null;
+            }
+            if(image != null) {
+                mOpenImages++;
+            }
+            return image;
+        }
+
+        synchronized void release(Image image) {
+            image.close();
+            mOpenImages--;
+            if(mClosed && mOpenImages == 0) {
+                mReader.close();
+            }
+        }
+
+        synchronized void close() {
+            if(mClosed) {
+                return;
+            }
+            mClosed = true;
+            if(mOpenImages == 0) {
+                mReader.close();
+            }
+        }
+    }
+
+    private static class ReleaseImage implements Runnable {
+        private final FrameReader mFrameReader;
+        private final Image mImage;
+
+        ReleaseImage(FrameReader frameReader, Image image) {
+            mFrameReader = frameReader;
+            mImage = image;
+        }
+
+        @Override
+        public void run() {
+            mFrameReader.release(mImage);
+        }
+    }
+}
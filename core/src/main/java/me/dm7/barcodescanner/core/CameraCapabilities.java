@@ -0,0 +1,162 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Point;
+import android.hardware.Camera;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a camera can do, as far as the scanner is concerned. Facing and orientation come from
+ * {@link Camera#getCameraInfo(int, Camera.CameraInfo)}; the rest needs an open camera and is null
+ * until the camera has been opened once.
+ */
+public final class CameraCapabilities {
+    private final int mCameraId;
+    private final int mFacing;
+    private final int mOrientation;
+    private final List<Point> mPreviewSizes;
+    private final List<int[]> mPreviewFpsRanges;
+    private final List<String> mFlashModes;
+    private final List<String> mFocusModes;
+
+    private CameraCapabilities(int cameraId, int facing, int orientation, List<Point> previewSizes,
+                               List<int[]> previewFpsRanges, List<String> flashModes, List<String> focusModes) {
+        mCameraId = cameraId;
+        mFacing = facing;
+        mOrientation = orientation;
+        mPreviewSizes = previewSizes;
+        mPreviewFpsRanges = previewFpsRanges;
+        mFlashModes = flashModes;
+        mFocusModes = focusModes;
+    }
+
+    static CameraCapabilities fromCameraInfo(int cameraId, Camera.CameraInfo info) {
+        return new CameraCapabilities(cameraId, info.facing, info.orientation, null, null, null, null);
+    }
+
+    /** Returns a copy that also holds what the parameters of the open camera report */
+    CameraCapabilities withParameters(Camera.Parameters parameters) {
+        List<Point> previewSizes = new ArrayList<>();
+        List<Camera.Size> sizes = parameters.getSupportedPreviewSizes();
+        if(sizes != null) {
+            for(Camera.Size size : sizes) {
+                previewSizes.add(new Point(size.width, size.height));
+            }
+        }
+        List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        return new CameraCapabilities(mCameraId, mFacing, mOrientation,
+                Collections.unmodifiableList(previewSizes),
+                fpsRanges != null ? Collections.unmodifiableList(fpsRanges) : Collections.<int[]>emptyList(),
+                unmodifiable(parameters.getSupportedFlashModes()),
+                unmodifiable(parameters.getSupportedFocusModes()));
+    }
+
+    public int getCameraId() {
+        return mCameraId;
+    }
+
+    /** {@link Camera.CameraInfo#CAMERA_FACING_BACK} or {@link Camera.CameraInfo#CAMERA_FACING_FRONT} */
+    public int getFacing() {
+        return mFacing;
+    }
+
+    /** Clockwise rotation of the sensor image relative to the natural orientation of the device */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /** True once the camera has been opened and the remaining capabilities are known */
+    public boolean hasParameters() {
+        return mPreviewSizes != null;
+    }
+
+    /** Supported preview sizes as (width, height), or null if not known yet */
+    public List<Point> getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    /** Supported preview fps ranges as {min, max}, or null if not known yet */
+    public List<int[]> getPreviewFpsRanges() {
+        return mPreviewFpsRanges;
+    }
+
+    /** Supported flash modes, empty if there is no flash, or null if not known yet */
+    public List<String> getFlashModes() {
+        return mFlashModes;
+    }
+
+    /** Supported focus modes, or null if not known yet */
+    public List<String> getFocusModes() {
+        return mFocusModes;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("id", mCameraId);
+        json.put("facing", mFacing);
+        json.put("orientation", mOrientation);
+        if(hasParameters()) {
+            JSONArray previewSizes = new JSONArray();
+            for(Point size : mPreviewSizes) {
+                previewSizes.put(new JSONArray().put(size.x).put(size.y));
+            }
+            json.put("previewSizes", previewSizes);
+            JSONArray fpsRanges = new JSONArray();
+            for(int[] range : mPreviewFpsRanges) {
+                fpsRanges.put(new JSONArray().put(range[0]).put(range[1]));
+            }
+            json.put("previewFpsRanges", fpsRanges);
+            json.put("flashModes", new JSONArray(mFlashModes));
+            json.put("focusModes", new JSONArray(mFocusModes));
+        }
+        return json;
+    }
+
+    static CameraCapabilities fromJson(JSONObject json) throws JSONException {
+        List<Point> previewSizes = null;
+        List<int[]> fpsRanges = null;
+        List<String> flashModes = null;
+        List<String> focusModes = null;
+        if(json.has("previewSizes")) {
+            previewSizes = new ArrayList<>();
+            JSONArray sizes = json.getJSONArray("previewSizes");
+            for(int i = 0; i < sizes.length(); i++) {
+                JSONArray size = sizes.getJSONArray(i);
+                previewSizes.add(new Point(size.getInt(0), size.getInt(1)));
+            }
+            fpsRanges = new ArrayList<>();
+            JSONArray ranges = json.getJSONArray("previewFpsRanges");
+            for(int i = 0; i < ranges.length(); i++) {
+                JSONArray range = ranges.getJSONArray(i);
+                fpsRanges.add(new int[] { range.getInt(0), range.getInt(1) });
+            }
+            flashModes = readStrings(json.getJSONArray("flashModes"));
+            focusModes = readStrings(json.getJSONArray("focusModes"));
+            previewSizes = Collections.unmodifiableList(previewSizes);
+            fpsRanges = Collections.unmodifiableList(fpsRanges);
+        }
+        return new CameraCapabilities(json.getInt("id"), json.getInt("facing"), json.getInt("orientation"),
+                previewSizes, fpsRanges, flashModes, focusModes);
+    }
+
+    private static List<String> readStrings(JSONArray array) throws JSONException {
+        List<String> strings = new ArrayList<>(array.length());
+        for(int i = 0; i < array.length(); i++) {
+            strings.add(array.getString(i));
+        }
+        return Collections.unmodifiableList(strings);
+    }
+
+    private static List<String> unmodifiable(List<String> strings) {
+        if(strings == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<>(strings));
+    }
+}
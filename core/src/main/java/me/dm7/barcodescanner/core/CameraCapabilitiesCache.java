@@ -0,0 +1,255 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Process wide cache of {@link CameraCapabilities}, persisted to a small JSON file in the cache
+ * directory so that cold starts do not have to query every camera again.
+ * <p>The file is only read on the camera thread, which scanner views ask for with
+ * {@link #preload()} as soon as they are created; until it has been read the cache answers from
+ * the cameras themselves, so the main thread never waits for the disk.
+ * The file is tied to {@link Build#FINGERPRINT}, so it is discarded after an OS update, which
+ * may change what the cameras report.</p>
+ */
+public class CameraCapabilitiesCache {
+    private static final String TAG = "CameraCapabilities";
+    private static final String FILE_NAME = "barcodescanner_camera_capabilities.json";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static CameraCapabilitiesCache sInstance;
+
+    private final File mFile;
+    // Guarded by this
+    private int mNumberOfCameras = -1;
+    private final SparseArray<CameraCapabilities> mCapabilities = new SparseArray<>();
+    private boolean mDirty;
+    private boolean mLoaded;
+    // Set once the file has been read, or found missing or outdated
+    private volatile boolean mLoadComplete;
+
+    public static synchronized CameraCapabilitiesCache getInstance(Context context) {
+        if(sInstance == null) {
+            sInstance = new CameraCapabilitiesCache(new File(context.getApplicationContext().getCacheDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    private CameraCapabilitiesCache(File file) {
+        mFile = file;
+    }
+
+    public synchronized int getNumberOfCameras() {
+        if(mNumberOfCameras < 0) {
+            mNumberOfCameras = Camera.getNumberOfCameras();
+            mDirty = true;
+        }
+        return mNumberOfCameras;
+    }
+
+    /** Capabilities of the camera, or null if there is no such camera */
+    public synchronized CameraCapabilities getCapabilities(int cameraId) {
+        CameraCapabilities capabilities = mCapabilities.get(cameraId);
+        if(capabilities == null) {
+            if(cameraId < 0 || cameraId >= getNumberOfCameras()) {
+                return null;
+            }
+            Camera.CameraInfo info = new Camera.CameraInfo();
+            try {
+                Camera.getCameraInfo(cameraId, info);
+            } catch(RuntimeException e) {
+                return null;
+            }
+            capabilities = CameraCapabilities.fromCameraInfo(cameraId, info);
+            mCapabilities.put(cameraId, capabilities);
+            mDirty = true;
+        }
+        return capabilities;
+    }
+
+    /**
+     * Records what the parameters of an open camera report, if that is not known yet, and writes
+     * the cache file if anything changed. Reads the file first if that has not happened yet.
+     * Does disk I/O, so call it off the main thread.
+     */
+    public void update(int cameraId, Camera camera) {
+        load();
+        synchronized (this) {
+            CameraCapabilities capabilities = getCapabilities(cameraId);
+            if(capabilities != null && !capabilities.hasParameters()) {
+                try {
+                    mCapabilities.put(cameraId, capabilities.withParameters(camera.getParameters()));
+                    mDirty = true;
+                } catch(RuntimeException e) {
+                    Log.e(TAG, e.toString(), e);
+                }
+            }
+        }
+        save();
+    }
+
+    /**
+     * Reads the cache file on the camera thread of the {@link ScannerRuntime}, unless that has
+     * already happened, so that it is in memory by the time a camera is started.
+     */
+    public void preload() {
+        synchronized (this) {
+            if(mLoaded) {
+                return;
+            }
+        }
+        final ScannerRuntime runtime = ScannerRuntime.getInstance();
+        Handler handler = runtime.acquireCameraHandler();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } finally {
+                    runtime.releaseCameraHandler();
+                }
+            }
+        });
+    }
+
+    /** Whether the cache file has been read, so that lookups don't have to query the cameras */
+    boolean isLoaded() {
+        return mLoadComplete;
+    }
+
+    /** Reads the cache file if that has not happened yet. Does disk I/O, call it off the main thread. */
+    void load() {
+        synchronized (this) {
+            if(mLoaded) {
+                return;
+            }
+            mLoaded = true;
+        }
+        try {
+            readCache();
+        } finally {
+            mLoadComplete = true;
+        }
+    }
+
+    private void readCache() {
+        if(!mFile.exists()) {
+            return;
+        }
+        // Parsed without holding the lock, so readers on the main thread don't wait for the disk
+        int numberOfCameras;
+        SparseArray<CameraCapabilities> loaded = new SparseArray<>();
+        try {
+            JSONObject json = new JSONObject(readFile(mFile));
+            if(!Build.FINGERPRINT.equals(json.optString("fingerprint"))) {
+                // Written by a different OS build
+                mFile.delete();
+                return;
+            }
+            numberOfCameras = json.getInt("numberOfCameras");
+            JSONArray cameras = json.getJSONArray("cameras");
+            for(int i = 0; i < cameras.length(); i++) {
+                CameraCapabilities capabilities = CameraCapabilities.fromJson(cameras.getJSONObject(i));
+                loaded.put(capabilities.getCameraId(), capabilities);
+            }
+        } catch(IOException | JSONException e) {
+            Log.w(TAG, "Discarding camera capabilities cache", e);
+            mFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if(mNumberOfCameras < 0) {
+                mNumberOfCameras = numberOfCameras;
+            }
+            for(int i = 0; i < loaded.size(); i++) {
+                // Keep what has been queried in the meantime, unless the file knows more
+                CameraCapabilities current = mCapabilities.get(loaded.keyAt(i));
+                if(current == null || (!current.hasParameters() && loaded.valueAt(i).hasParameters())) {
+                    mCapabilities.put(loaded.keyAt(i), loaded.valueAt(i));
+                }
+            }
+        }
+    }
+
+    private void save() {
+        String contents;
+        synchronized (this) {
+            if(!mDirty) {
+                return;
+            }
+            mDirty = false;
+            try {
+                JSONObject json = new JSONObject();
+                json.put("fingerprint", Build.FINGERPRINT);
+                json.put("numberOfCameras", getNumberOfCameras());
+                JSONArray cameras = new JSONArray();
+                for(int i = 0; i < mCapabilities.size(); i++) {
+                    cameras.put(mCapabilities.valueAt(i).toJson());
+                }
+                json.put("cameras", cameras);
+                contents = json.toString();
+            } catch(JSONException e) {
+                Log.e(TAG, e.toString(), e);
+                return;
+            }
+        }
+
+        // Write to a temporary file first, so a crash can't leave a truncated cache behind
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            out.write(contents.getBytes(UTF_8));
+            out.close();
+            out = null;
+            if(!tmpFile.renameTo(mFile)) {
+                tmpFile.delete();
+            }
+        } catch(IOException e) {
+            Log.w(TAG, "Could not write camera capabilities cache", e);
+        } finally {
+            if(out != null) {
+                try {
+                    out.close();
+                } catch(IOException ignored) {
+                }
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while(offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if(read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new String(data, 0, offset, UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
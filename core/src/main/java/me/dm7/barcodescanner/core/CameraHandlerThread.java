@@ -7,6 +7,12 @@ import android.os.HandlerThread;
 import android.os.Looper;
 
 // This code is mostly based on the top answer here: http://stackoverflow.com/questions/18149964/best-use-of-handlerthread-over-other-similar-classes
+/**
+ * @deprecated Scanner views no longer use a thread of their own, they open their cameras on the
+ * camera thread of the {@link ScannerRuntime}, which is shared by all scanner views. This class
+ * still starts a separate thread per instance and is only kept for existing callers.
+ */
+@Deprecated
 public class CameraHandlerThread extends HandlerThread {
     private static final String LOG_TAG = "CameraHandlerThread";
 
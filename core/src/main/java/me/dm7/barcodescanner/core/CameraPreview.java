@@ -3,6 +3,7 @@ package me.dm7.barcodescanner.core;
 import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.os.Handler;
 import android.util.AttributeSet;
@@ -15,19 +16,39 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback {
     private static final String TAG = "CameraPreview";
 
     private CameraWrapper mCameraWrapper;
+    // Set and cleared on the main thread, read by updateFocusAreas() on the camera thread
+    private volatile CameraSettings mCameraSettings;
+    private PreviewFpsController mFpsController;
     private Handler mAutoFocusHandler;
     private boolean mPreviewing = true;
     private boolean mAutoFocus = true;
+    // Continuous focus mode of the camera, or null if autofocus has to be triggered periodically
+    private String mContinuousFocusMode;
+    private String mManualFocusMode;
     private boolean mSurfaceCreated = false;
+    // Parameters, display and orientation of the camera are set up for the current surface
+    private boolean mSessionConfigured = false;
     private boolean mShouldScaleToFill = true;
     private Camera.PreviewCallback mPreviewCallback;
+    private PreviewBufferPool mBufferPool;
+    private final AtomicReference<FrameGeometry> mFrameGeometry = new AtomicReference<>();
     private float mAspectTolerance = 0.1f;
+    private PreviewSizePolicy mPreviewSizePolicy = new DisplayFitSizePolicy();
+    private IViewFinder mViewFinder;
+    private Collection<String> mFormatNames = Collections.emptyList();
+    // Set while the surface shows frames of a Camera2 session instead of a Camera
+    private boolean mExternalPreview;
+    private int mExternalFacing;
+    private int mExternalSensorOrientation;
 
     public CameraPreview(Context context, CameraWrapper cameraWrapper, Camera.PreviewCallback previewCallback) {
         super(context);
@@ -48,7 +69,34 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
     public void setCamera(CameraWrapper cameraWrapper, Camera.PreviewCallback previewCallback) {
         mCameraWrapper = cameraWrapper;
+        mCameraSettings = null;
         mPreviewCallback = previewCallback;
+        mSessionConfigured = false;
+        if(mExternalPreview) {
+            // Let the Camera size the surface again
+            mExternalPreview = false;
+            getHolder().setSizeFromLayout();
+        }
+        mFrameGeometry.set(null);
+    }
+
+    /**
+     * Sets the surface up for frames of the given size that are drawn by a Camera2 session
+     * rather than a Camera. facing is one of the {@link Camera.CameraInfo} constants.
+     */
+    void setupExternalPreview(int previewWidth, int previewHeight, int previewFormat, int facing,
+                              int sensorOrientation) {
+        mExternalPreview = true;
+        mExternalFacing = facing;
+        mExternalSensorOrientation = sensorOrientation;
+        mSessionConfigured = false;
+        updateFrameGeometry(previewWidth, previewHeight, previewFormat);
+        getHolder().addCallback(this);
+        getHolder().setFixedSize(previewWidth, previewHeight);
+        if(getWidth() > 0 && getHeight() > 0) {
+            adjustViewSize(previewWidth, previewHeight);
+            mSessionConfigured = true;
+        }
     }
 
     public void setShouldScaleToFill(boolean scaleToFill) {
@@ -59,6 +107,51 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         mAspectTolerance = aspectTolerance;
     }
 
+    /**
+     * Strategy that picks the preview size, {@link DisplayFitSizePolicy} by default. Takes effect
+     * the next time the preview is set up.
+     */
+    public void setPreviewSizePolicy(PreviewSizePolicy previewSizePolicy) {
+        mPreviewSizePolicy = previewSizePolicy != null ? previewSizePolicy : new DisplayFitSizePolicy();
+    }
+
+    /**
+     * What is scanned for, as input to the preview size policy: the view finder that defines
+     * the framing rect and the names of the barcode formats.
+     */
+    public void setScanTarget(IViewFinder viewFinder, Collection<String> formatNames) {
+        mViewFinder = viewFinder;
+        mFormatNames = formatNames != null ? formatNames : Collections.<String>emptyList();
+    }
+
+    /**
+     * Parameter cache of the current camera. If none is set, one that applies changes on the
+     * calling thread is created on first use.
+     */
+    public void setCameraSettings(CameraSettings cameraSettings) {
+        mCameraSettings = cameraSettings;
+    }
+
+    /** Supplies the preview fps range, or null to keep the camera's */
+    public void setFpsController(PreviewFpsController fpsController) {
+        mFpsController = fpsController;
+    }
+
+    private CameraSettings getCameraSettings() {
+        if(mCameraSettings == null) {
+            mCameraSettings = new CameraSettings(mCameraWrapper.mCamera, null);
+        }
+        return mCameraSettings;
+    }
+
+    /**
+     * Deliver preview frames through the given pool of callback buffers instead of a one shot
+     * preview callback. Pass null to go back to one shot callbacks.
+     */
+    public void setPreviewBufferPool(PreviewBufferPool bufferPool) {
+        mBufferPool = bufferPool;
+    }
+
     @Override
     public void surfaceCreated(SurfaceHolder surfaceHolder) {
         mSurfaceCreated = true;
@@ -69,6 +162,15 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         if(surfaceHolder.getSurface() == null) {
             return;
         }
+        if(mExternalPreview) {
+            // The view is laid out by now, the Camera2 session takes care of the surface
+            FrameGeometry geometry = mFrameGeometry.get();
+            if(!mSessionConfigured && geometry != null) {
+                adjustViewSize(geometry.getPreviewWidth(), geometry.getPreviewHeight());
+                mSessionConfigured = true;
+            }
+            return;
+        }
         stopCameraPreview();
         showCameraPreview();
     }
@@ -76,6 +178,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     @Override
     public void surfaceDestroyed(SurfaceHolder surfaceHolder) {
         mSurfaceCreated = false;
+        mSessionConfigured = false;
         stopCameraPreview();
     }
 
@@ -84,12 +187,14 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
             try {
                 getHolder().addCallback(this);
                 mPreviewing = true;
+                mSessionConfigured = false;
                 setupCameraParameters();
                 mCameraWrapper.mCamera.setPreviewDisplay(getHolder());
-                mCameraWrapper.mCamera.setDisplayOrientation(getDisplayOrientation());
-                mCameraWrapper.mCamera.setOneShotPreviewCallback(mPreviewCallback);
+                mCameraWrapper.mCamera.setDisplayOrientation(mFrameGeometry.get().getDisplayOrientation());
+                setupPreviewCallback();
                 mCameraWrapper.mCamera.startPreview();
-                if(mAutoFocus) {
+                mSessionConfigured = mSurfaceCreated;
+                if(mAutoFocus && mContinuousFocusMode == null) {
                     if (mSurfaceCreated) { // check if surface created before using autofocus
                         safeAutoFocus();
                     } else {
@@ -102,6 +207,62 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
     }
 
+    /**
+     * Restarts a preview that was stopped with {@link #stopCameraPreview()}, e.g. after a result.
+     * If the camera is still set up for the current surface and orientation, only the preview
+     * callback is re-armed and the preview restarted. Otherwise it falls back to
+     * {@link #showCameraPreview()}.
+     *
+     * @return true if the preview was resumed without setting up the camera again
+     */
+    public boolean resumeCameraPreview() {
+        if(mCameraWrapper == null) {
+            return false;
+        }
+        Surface surface = getHolder().getSurface();
+        if(!mSessionConfigured || !mSurfaceCreated || surface == null || !surface.isValid()) {
+            showCameraPreview();
+            return false;
+        }
+        try {
+            getHolder().addCallback(this);
+            mPreviewing = true;
+            setupPreviewCallback();
+            mCameraWrapper.mCamera.startPreview();
+            if(mAutoFocus && mContinuousFocusMode == null) {
+                // The focus loop ends when the preview is stopped
+                safeAutoFocus();
+            }
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, e.toString(), e);
+            return false;
+        }
+    }
+
+    public boolean isPreviewing() {
+        return mCameraWrapper != null && mPreviewing;
+    }
+
+    /**
+     * Starts the preview again for a camera that was kept open while the view was stopped. If
+     * the surface is not there yet, the preview starts once it has been created.
+     */
+    public void restartCameraPreview() {
+        // The surface may have been replaced in the meantime without us being told
+        mSessionConfigured = false;
+        getHolder().addCallback(this);
+        Surface surface = getHolder().getSurface();
+        if(surface != null && surface.isValid()) {
+            showCameraPreview();
+        }
+    }
+
+    /** Makes the next resume set up the camera again, e.g. to apply a new preview size */
+    public void invalidateSession() {
+        mSessionConfigured = false;
+    }
+
     public void safeAutoFocus() {
         try {
             mCameraWrapper.mCamera.autoFocus(autoFocusCB);
@@ -118,25 +279,168 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
                 mPreviewing = false;
                 getHolder().removeCallback(this);
                 mCameraWrapper.mCamera.cancelAutoFocus();
-                mCameraWrapper.mCamera.setOneShotPreviewCallback(null);
+                if(mBufferPool != null) {
+                    mCameraWrapper.mCamera.setPreviewCallbackWithBuffer(null);
+                } else {
+                    mCameraWrapper.mCamera.setOneShotPreviewCallback(null);
+                }
                 mCameraWrapper.mCamera.stopPreview();
             } catch(Exception e) {
                 Log.e(TAG, e.toString(), e);
             }
         }
+        if(mBufferPool != null) {
+            mBufferPool.detach();
+        }
+    }
+
+    /**
+     * Lets go of the camera without calling into it, so that the preview can be stopped and the
+     * camera released on the camera thread.
+     */
+    public void detachCamera() {
+        mPreviewing = false;
+        mAutoFocusHandler.removeCallbacks(doAutoFocus);
+        getHolder().removeCallback(this);
+        setCamera(null, null);
+        if(mBufferPool != null) {
+            mBufferPool.detach();
+        }
+    }
+
+    private void setupPreviewCallback() {
+        if(mBufferPool != null) {
+            FrameGeometry geometry = mFrameGeometry.get();
+            mBufferPool.attach(mCameraWrapper.mCamera, geometry.getPreviewWidth(),
+                    geometry.getPreviewHeight(), geometry.getPreviewFormat());
+        } else {
+            mCameraWrapper.mCamera.setOneShotPreviewCallback(mPreviewCallback);
+        }
     }
 
     public void setupCameraParameters() {
         Camera.Size optimalSize = getOptimalPreviewSize();
-        Camera.Parameters parameters = mCameraWrapper.mCamera.getParameters();
-        parameters.setPreviewSize(optimalSize.width, optimalSize.height);
-        mCameraWrapper.mCamera.setParameters(parameters);
-        adjustViewSize(optimalSize);
+        CameraSettings cameraSettings = getCameraSettings();
+        CameraSettings.Editor editor = cameraSettings.edit().setPreviewSize(optimalSize.width, optimalSize.height);
+        setupFocusMode(cameraSettings);
+        String focusMode = mAutoFocus ? mContinuousFocusMode : mManualFocusMode;
+        if(focusMode != null) {
+            editor.setFocusMode(focusMode);
+        }
+        int[] fpsRange = mFpsController != null ? mFpsController.getFpsRange() : null;
+        if(fpsRange != null) {
+            editor.setPreviewFpsRange(fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        }
+        // Changes that are still queued for the camera thread go out with the preview size
+        if(!editor.commit()) {
+            // A rejected focus mode or fps range takes the preview size down with it
+            cameraSettings.edit().setPreviewSize(optimalSize.width, optimalSize.height).commit();
+        }
+        // Frames, buffers and the view follow the size the camera actually uses
+        Camera.Size previewSize = cameraSettings.getPreviewSize();
+        updateFrameGeometry(previewSize.width, previewSize.height, cameraSettings.getPreviewFormat());
+        adjustViewSize(previewSize.width, previewSize.height);
     }
 
-    private void adjustViewSize(Camera.Size cameraSize) {
+    private void setupFocusMode(CameraSettings cameraSettings) {
+        mContinuousFocusMode = null;
+        mManualFocusMode = null;
+        List<String> focusModes = cameraSettings.getSupportedFocusModes();
+        if(focusModes == null) {
+            return;
+        }
+        // Continuous picture focus moves the lens faster than the video variant
+        if(focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+            mContinuousFocusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE;
+        } else if(focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
+            mContinuousFocusMode = Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO;
+        }
+        if(mContinuousFocusMode != null && focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
+            mManualFocusMode = Camera.Parameters.FOCUS_MODE_AUTO;
+        }
+    }
+
+    /**
+     * Points focus and metering at the framing rect of the geometry, so the camera adjusts to
+     * the barcode rather than to the whole scene.
+     */
+    void updateFocusAreas(FrameGeometry geometry) {
+        CameraSettings cameraSettings = mCameraSettings;
+        Rect rect = geometry.getPreviewFramingRect();
+        if(cameraSettings == null || rect == null) {
+            return;
+        }
+        boolean focusAreas = cameraSettings.getMaxNumFocusAreas() > 0;
+        boolean meteringAreas = cameraSettings.getMaxNumMeteringAreas() > 0;
+        if(!focusAreas && !meteringAreas) {
+            return;
+        }
+
+        // Areas are given in sensor coordinates from -1000 to 1000, regardless of the display orientation
+        int width = geometry.getPreviewWidth();
+        int height = geometry.getPreviewHeight();
+        Rect area = new Rect(
+                clampAreaCoordinate(rect.left * 2000 / width - 1000),
+                clampAreaCoordinate(rect.top * 2000 / height - 1000),
+                clampAreaCoordinate(rect.right * 2000 / width - 1000),
+                clampAreaCoordinate(rect.bottom * 2000 / height - 1000));
+        if(area.width() <= 0 || area.height() <= 0) {
+            return;
+        }
+        List<Camera.Area> areas = Collections.singletonList(new Camera.Area(area, 1000));
+
+        CameraSettings.Editor editor = cameraSettings.edit();
+        if(focusAreas) {
+            editor.setFocusAreas(areas);
+        }
+        if(meteringAreas) {
+            editor.setMeteringAreas(areas);
+        }
+        editor.apply();
+    }
+
+    private static int clampAreaCoordinate(int coordinate) {
+        return Math.max(-1000, Math.min(1000, coordinate));
+    }
+
+    @Override
+    protected void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // The display orientation has to be set up again
+        mSessionConfigured = false;
+        FrameGeometry geometry = mFrameGeometry.get();
+        if(geometry != null && (mCameraWrapper != null || mExternalPreview)) {
+            updateFrameGeometry(geometry.getPreviewWidth(), geometry.getPreviewHeight(), geometry.getPreviewFormat());
+        }
+    }
+
+    private void updateFrameGeometry(int previewWidth, int previewHeight, int previewFormat) {
+        mFrameGeometry.set(new FrameGeometry(previewWidth, previewHeight, previewFormat,
+                getDisplayOrientation(), DisplayUtils.getScreenOrientation(getContext())));
+    }
+
+    /**
+     * Layout of the frames of the current preview session, or null if the preview has not been
+     * set up yet. Safe to call from any thread.
+     */
+    public FrameGeometry getFrameGeometry() {
+        return mFrameGeometry.get();
+    }
+
+    /**
+     * Attaches the framing rect to a geometry snapshot. The result is only published if the
+     * geometry has not changed in the meantime.
+     */
+    FrameGeometry setFramingRect(FrameGeometry geometry, Rect framingRect) {
+        FrameGeometry updated = geometry.withFramingRect(framingRect);
+        mFrameGeometry.compareAndSet(geometry, updated);
+        return updated;
+    }
+
+    private void adjustViewSize(int cameraWidth, int cameraHeight) {
         Point previewSize = convertSizeToLandscapeOrientation(new Point(getWidth(), getHeight()));
-        float cameraRatio = ((float) cameraSize.width) / cameraSize.height;
+        float cameraRatio = ((float) cameraWidth) / cameraHeight;
         float screenRatio = ((float) previewSize.x) / previewSize.y;
 
         if (screenRatio > cameraRatio) {
@@ -148,7 +452,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
     @SuppressWarnings("SuspiciousNameCombination")
     private Point convertSizeToLandscapeOrientation(Point size) {
-        if (getDisplayOrientation() % 180 == 0) {
+        if (mFrameGeometry.get().getDisplayOrientation() % 180 == 0) {
             return size;
         } else {
             return new Point(size.y, size.x);
@@ -160,7 +464,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         ViewGroup.LayoutParams layoutParams = getLayoutParams();
         int tmpWidth;
         int tmpHeight;
-        if (getDisplayOrientation() % 180 == 0) {
+        if (mFrameGeometry.get().getDisplayOrientation() % 180 == 0) {
             tmpWidth = width;
             tmpHeight = height;
         } else {
@@ -192,18 +496,23 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     }
 
     public int getDisplayOrientation() {
+        if (mExternalPreview) {
+            return getDisplayOrientation(mExternalFacing, mExternalSensorOrientation);
+        }
         if (mCameraWrapper == null) {
             //If we don't have a camera set there is no orientation so return dummy value
             return 0;
         }
 
-        Camera.CameraInfo info = new Camera.CameraInfo();
-        if(mCameraWrapper.mCameraId == -1) {
-            Camera.getCameraInfo(Camera.CameraInfo.CAMERA_FACING_BACK, info);
-        } else {
-            Camera.getCameraInfo(mCameraWrapper.mCameraId, info);
+        int cameraId = mCameraWrapper.mCameraId == -1 ? Camera.CameraInfo.CAMERA_FACING_BACK : mCameraWrapper.mCameraId;
+        CameraCapabilities info = CameraCapabilitiesCache.getInstance(getContext()).getCapabilities(cameraId);
+        if (info == null) {
+            return 0;
         }
+        return getDisplayOrientation(info.getFacing(), info.getOrientation());
+    }
 
+    private int getDisplayOrientation(int facing, int sensorOrientation) {
         WindowManager wm = (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
         Display display = wm.getDefaultDisplay();
 
@@ -217,11 +526,11 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
 
         int result;
-        if (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-            result = (info.orientation + degrees) % 360;
+        if (facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+            result = (sensorOrientation + degrees) % 360;
             result = (360 - result) % 360;  // compensate the mirror
         } else {  // back-facing
-            result = (info.orientation - degrees + 360) % 360;
+            result = (sensorOrientation - degrees + 360) % 360;
         }
         return result;
     }
@@ -231,44 +540,36 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
             return null;
         }
 
-        List<Camera.Size> sizes = mCameraWrapper.mCamera.getParameters().getSupportedPreviewSizes();
+        List<Camera.Size> sizes = getCameraSettings().getSupportedPreviewSizes();
         int w = getWidth();
         int h = getHeight();
+        Rect framingRect = getViewFramingRect(w, h);
         if (DisplayUtils.getScreenOrientation(getContext()) == Configuration.ORIENTATION_PORTRAIT) {
             int portraitWidth = h;
             h = w;
             w = portraitWidth;
+            if (framingRect != null) {
+                framingRect = new Rect(framingRect.top, framingRect.left, framingRect.bottom, framingRect.right);
+            }
         }
 
-        double targetRatio = (double) w / h;
-        if (sizes == null) return null;
-
-        Camera.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
-
-        int targetHeight = h;
+        return mPreviewSizePolicy.selectPreviewSize(sizes, w, h, framingRect, mFormatNames, mAspectTolerance);
+    }
 
-        // Try to find an size match aspect ratio and size
-        for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > mAspectTolerance) continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
+    // Framing rect of the view finder, scaled to a view of the given size
+    private Rect getViewFramingRect(int width, int height) {
+        IViewFinder viewFinder = mViewFinder;
+        if (viewFinder == null) {
+            return null;
         }
-
-        // Cannot find the one match the aspect ratio, ignore the requirement
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
+        Rect rect = viewFinder.getFramingRect();
+        int viewFinderWidth = viewFinder.getWidth();
+        int viewFinderHeight = viewFinder.getHeight();
+        if (rect == null || viewFinderWidth == 0 || viewFinderHeight == 0) {
+            return null;
         }
-        return optimalSize;
+        return new Rect(rect.left * width / viewFinderWidth, rect.top * height / viewFinderHeight,
+                rect.right * width / viewFinderWidth, rect.bottom * height / viewFinderHeight);
     }
 
     public void setAutoFocus(boolean state) {
@@ -277,6 +578,14 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
                 return;
             }
             mAutoFocus = state;
+            if(mContinuousFocusMode != null) {
+                // The camera keeps focusing on its own, there is no loop to start or stop
+                String focusMode = mAutoFocus ? mContinuousFocusMode : mManualFocusMode;
+                if(focusMode != null) {
+                    getCameraSettings().edit().setFocusMode(focusMode).apply();
+                }
+                return;
+            }
             if(mAutoFocus) {
                 if (mSurfaceCreated) { // check if surface created before using autofocus
                     Log.v(TAG, "Starting autofocus");
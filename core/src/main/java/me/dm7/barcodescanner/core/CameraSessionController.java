@@ -0,0 +1,203 @@
+package me.dm7.barcodescanner.core;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Opens and releases the camera of a scanner view on the camera thread of the
+ * {@link ScannerRuntime}, which is shared by all scanner views. Holds a reference to that thread
+ * from construction until the camera has been stopped; a controller that has been stopped can't
+ * be started again.
+ */
+final class CameraSessionController {
+    private static final String LOG_TAG = "CameraSessionController";
+
+    private final BarcodeScannerView mScannerView;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Incremented by every start and stop, so that a camera opened for an outdated start is released
+    private int mGeneration;
+    private boolean mStopped;
+    private boolean mQuit;
+
+    private final Runnable mQuitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CameraSessionController.this) {
+                if(mQuit) {
+                    return;
+                }
+                mQuit = true;
+            }
+            ScannerRuntime.getInstance().releaseCameraHandler();
+        }
+    };
+
+    CameraSessionController(BarcodeScannerView scannerView) {
+        mScannerView = scannerView;
+        mHandler = ScannerRuntime.getInstance().acquireCameraHandler();
+    }
+
+    /** Handler of the camera thread, which the camera callbacks arrive on */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Opens the camera on the camera thread. Since all scanner views share that thread, a camera
+     * that is still being released by a previous {@link #stopCamera(Camera, Runnable)} is
+     * released first.
+     *
+     * @return false if the controller has already been stopped and a new instance is needed
+     */
+    synchronized boolean startCamera(final int cameraId) {
+        if(mStopped) {
+            return false;
+        }
+        final int generation = ++mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Camera camera = CameraUtils.getCameraInstance(cameraId);
+                if(camera != null && cameraId != -1) {
+                    // Remember what the camera supports while still off the main thread
+                    CameraCapabilitiesCache.getInstance(mScannerView.getContext()).update(cameraId, camera);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(!isCurrent(generation)) {
+                            // The camera was stopped before it could be set up
+                            releaseCamera(camera, null);
+                            return;
+                        }
+                        mScannerView.setupCameraPreview(CameraWrapper.getWrapper(camera, cameraId));
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Looks up the default camera on the camera thread, after reading the
+     * {@link CameraCapabilitiesCache} file if that has not happened yet, then starts it through
+     * {@link BarcodeScannerView#startCamera(int)} on the main thread. Cancelled by a stop or
+     * another start like a pending open.
+     *
+     * @return false if the controller has already been stopped and a new instance is needed
+     */
+    synchronized boolean startDefaultCamera() {
+        if(mStopped) {
+            return false;
+        }
+        final int generation = ++mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                CameraCapabilitiesCache.getInstance(mScannerView.getContext()).load();
+                final int cameraId = CameraUtils.getDefaultCameraId(mScannerView.getContext());
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(isCurrent(generation)) {
+                            mScannerView.startCamera(cameraId);
+                        }
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Opens a Camera2 session on the camera thread, see {@link #startCamera(int)}.
+     *
+     * @return false if the controller has already been stopped and a new instance is needed
+     */
+    synchronized boolean startCamera(final Camera2Session session) {
+        if(mStopped) {
+            return false;
+        }
+        ++mGeneration;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                session.open(mHandler);
+            }
+        });
+        return true;
+    }
+
+    /** Closes a Camera2 session on the camera thread, see {@link #stopCamera(Camera, Runnable)}. */
+    synchronized void stopCamera(final Camera2Session session, final Runnable onStopped) {
+        mGeneration++;
+        Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                session.close();
+                if(onStopped != null) {
+                    mMainHandler.post(onStopped);
+                }
+            }
+        };
+        if(!mHandler.post(close)) {
+            // The thread has already quit
+            close.run();
+        }
+        quit();
+    }
+
+    /**
+     * Stops the preview and releases the camera on the camera thread, then lets go of the thread.
+     * A start that is still pending is cancelled. onStopped runs on the main thread once the camera
+     * has been released.
+     */
+    synchronized void stopCamera(Camera camera, Runnable onStopped) {
+        mGeneration++;
+        releaseCamera(camera, onStopped);
+        quit();
+    }
+
+    private void quit() {
+        if(mStopped) {
+            return;
+        }
+        mStopped = true;
+        // Runs after everything posted so far, including the release
+        if(!mHandler.post(mQuitRunnable)) {
+            mQuitRunnable.run();
+        }
+    }
+
+    private synchronized boolean isCurrent(int generation) {
+        return generation == mGeneration;
+    }
+
+    private void releaseCamera(final Camera camera, final Runnable onStopped) {
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if(camera != null) {
+                    try {
+                        camera.cancelAutoFocus();
+                        camera.setPreviewCallback(null);
+                        camera.stopPreview();
+                    } catch(Exception e) {
+                        Log.e(LOG_TAG, e.toString(), e);
+                    }
+                    camera.release();
+                }
+                if(onStopped != null) {
+                    mMainHandler.post(onStopped);
+                }
+            }
+        };
+        if(!mHandler.post(release)) {
+            // The thread has already quit
+            release.run();
+        }
+    }
+}
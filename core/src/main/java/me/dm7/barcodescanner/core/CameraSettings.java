@@ -0,0 +1,353 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Point;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cached camera parameters with batched writes.
+ * <p>Reads are served from a snapshot of the parameters instead of a getParameters() round trip.
+ * Changes are collected in an {@link Editor}; edits that are applied before the camera thread
+ * gets to them are merged, so they cost a single setParameters() call.</p>
+ * <p>Given the {@link CameraCapabilities} of the camera, the supported sizes, ranges and modes
+ * are taken from there instead of being parsed out of the parameters again.</p>
+ */
+public class CameraSettings {
+    private static final String TAG = "CameraSettings";
+
+    private final Camera mCamera;
+    private final Handler mHandler;
+    private final CameraCapabilities mCapabilities;
+    private final Object mApplyLock = new Object();
+
+    // Guarded by this
+    private Camera.Parameters mSnapshot;
+    private List<Camera.Size> mSupportedPreviewSizes;
+    private Editor mPending;
+    private boolean mApplyScheduled;
+
+    // Only used with mApplyLock held, to hand the merged parameters to the camera
+    private Camera.Parameters mScratch;
+
+    private final Runnable mApplyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyPending();
+        }
+    };
+
+    /**
+     * @param handler handler of the thread that changes are applied on, or null to apply them on
+     *                the calling thread
+     */
+    public CameraSettings(Camera camera, Handler handler) {
+        this(camera, handler, null);
+    }
+
+    /**
+     * @param handler      handler of the thread that changes are applied on, or null to apply them
+     *                     on the calling thread
+     * @param capabilities what the camera supports, e.g. from the {@link CameraCapabilitiesCache},
+     *                     or null to read it from the parameters
+     */
+    public CameraSettings(Camera camera, Handler handler, CameraCapabilities capabilities) {
+        mCamera = camera;
+        mHandler = handler;
+        mCapabilities = capabilities != null && capabilities.hasParameters() ? capabilities : null;
+        mSnapshot = camera.getParameters();
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public synchronized String getFlashMode() {
+        if(mPending != null && mPending.mFlashMode != null) {
+            return mPending.mFlashMode;
+        }
+        return mSnapshot.getFlashMode();
+    }
+
+    public synchronized List<String> getSupportedFlashModes() {
+        if(mCapabilities != null) {
+            // Like the parameters, null if there is no flash
+            return mCapabilities.getFlashModes().isEmpty() ? null : mCapabilities.getFlashModes();
+        }
+        return mSnapshot.getSupportedFlashModes();
+    }
+
+    public synchronized boolean isFlashSupported() {
+        return CameraUtils.isFlashSupported(mSnapshot);
+    }
+
+    public synchronized String getFocusMode() {
+        if(mPending != null && mPending.mFocusMode != null) {
+            return mPending.mFocusMode;
+        }
+        return mSnapshot.getFocusMode();
+    }
+
+    public synchronized List<String> getSupportedFocusModes() {
+        if(mCapabilities != null) {
+            return mCapabilities.getFocusModes();
+        }
+        return mSnapshot.getSupportedFocusModes();
+    }
+
+    public synchronized int getMaxNumFocusAreas() {
+        return mSnapshot.getMaxNumFocusAreas();
+    }
+
+    public synchronized int getMaxNumMeteringAreas() {
+        return mSnapshot.getMaxNumMeteringAreas();
+    }
+
+    public synchronized int getZoom() {
+        if(mPending != null && mPending.mZoom >= 0) {
+            return mPending.mZoom;
+        }
+        return mSnapshot.getZoom();
+    }
+
+    public synchronized boolean isZoomSupported() {
+        return mSnapshot.isZoomSupported();
+    }
+
+    public synchronized int getMaxZoom() {
+        return mSnapshot.getMaxZoom();
+    }
+
+    public synchronized Camera.Size getPreviewSize() {
+        return mSnapshot.getPreviewSize();
+    }
+
+    public synchronized List<Camera.Size> getSupportedPreviewSizes() {
+        if(mCapabilities == null) {
+            return mSnapshot.getSupportedPreviewSizes();
+        }
+        if(mSupportedPreviewSizes == null) {
+            List<Camera.Size> sizes = new ArrayList<>(mCapabilities.getPreviewSizes().size());
+            for(Point size : mCapabilities.getPreviewSizes()) {
+                sizes.add(mCamera.new Size(size.x, size.y));
+            }
+            mSupportedPreviewSizes = Collections.unmodifiableList(sizes);
+        }
+        return mSupportedPreviewSizes;
+    }
+
+    public synchronized int getPreviewFormat() {
+        return mSnapshot.getPreviewFormat();
+    }
+
+    /** Returns {min, max} in the units of {@link Camera.Parameters#getPreviewFpsRange(int[])} */
+    public synchronized int[] getPreviewFpsRange() {
+        if(mPending != null && mPending.mFpsRange != null) {
+            return mPending.mFpsRange.clone();
+        }
+        int[] range = new int[2];
+        mSnapshot.getPreviewFpsRange(range);
+        return range;
+    }
+
+    public synchronized List<int[]> getSupportedPreviewFpsRange() {
+        if(mCapabilities != null) {
+            return mCapabilities.getPreviewFpsRanges();
+        }
+        return mSnapshot.getSupportedPreviewFpsRange();
+    }
+
+    private void apply(Editor editor) {
+        synchronized (this) {
+            if(mPending == null) {
+                mPending = editor;
+            } else {
+                mPending.merge(editor);
+            }
+            if(mApplyScheduled) {
+                return;
+            }
+            if(mHandler != null) {
+                mApplyScheduled = mHandler.post(mApplyRunnable);
+                if(mApplyScheduled) {
+                    return;
+                }
+            }
+        }
+        // No camera thread, or it has already quit
+        applyPending();
+    }
+
+    private boolean commit(Editor editor) {
+        synchronized (this) {
+            if(mPending == null) {
+                mPending = editor;
+            } else {
+                mPending.merge(editor);
+            }
+        }
+        return applyPending();
+    }
+
+    // Returns false if the camera rejected the parameters, the snapshot is resynced then
+    private boolean applyPending() {
+        synchronized (mApplyLock) {
+            String flattened;
+            synchronized (this) {
+                mApplyScheduled = false;
+                Editor pending = mPending;
+                mPending = null;
+                if(pending == null) {
+                    return true;
+                }
+                pending.applyTo(mSnapshot);
+                flattened = mSnapshot.flatten();
+            }
+
+            try {
+                if(mScratch == null) {
+                    mScratch = mCamera.getParameters();
+                }
+                mScratch.unflatten(flattened);
+                mCamera.setParameters(mScratch);
+                return true;
+            } catch(RuntimeException e) {
+                Log.e(TAG, "Could not apply camera parameters", e);
+                refresh();
+                return false;
+            }
+        }
+    }
+
+    // Resyncs the snapshot with what the camera actually accepted
+    private void refresh() {
+        try {
+            Camera.Parameters parameters = mCamera.getParameters();
+            synchronized (this) {
+                mSnapshot = parameters;
+            }
+        } catch(RuntimeException e) {
+            // The camera has been released
+        }
+    }
+
+    /**
+     * Collects parameter changes. {@link #apply()} hands them to the camera thread,
+     * {@link #commit()} sets them on the calling thread, together with any that are still pending.
+     */
+    public class Editor {
+        private String mFlashMode;
+        private String mFocusMode;
+        private List<Camera.Area> mFocusAreas;
+        private List<Camera.Area> mMeteringAreas;
+        private int mPreviewWidth = -1;
+        private int mPreviewHeight = -1;
+        private int mZoom = -1;
+        private int[] mFpsRange;
+
+        private Editor() {
+        }
+
+        public Editor setFlashMode(String flashMode) {
+            mFlashMode = flashMode;
+            return this;
+        }
+
+        public Editor setFocusMode(String focusMode) {
+            mFocusMode = focusMode;
+            return this;
+        }
+
+        public Editor setFocusAreas(List<Camera.Area> focusAreas) {
+            mFocusAreas = focusAreas;
+            return this;
+        }
+
+        public Editor setMeteringAreas(List<Camera.Area> meteringAreas) {
+            mMeteringAreas = meteringAreas;
+            return this;
+        }
+
+        /** The preview size can only be changed while the preview is stopped */
+        public Editor setPreviewSize(int width, int height) {
+            mPreviewWidth = width;
+            mPreviewHeight = height;
+            return this;
+        }
+
+        public Editor setZoom(int zoom) {
+            mZoom = zoom;
+            return this;
+        }
+
+        public Editor setPreviewFpsRange(int min, int max) {
+            mFpsRange = new int[] { min, max };
+            return this;
+        }
+
+        public void apply() {
+            CameraSettings.this.apply(this);
+        }
+
+        /**
+         * @return false if the camera rejected the changes. None of them are applied then, and the
+         * getters report what the camera actually uses.
+         */
+        public boolean commit() {
+            return CameraSettings.this.commit(this);
+        }
+
+        private void merge(Editor other) {
+            if(other.mFlashMode != null) {
+                mFlashMode = other.mFlashMode;
+            }
+            if(other.mFocusMode != null) {
+                mFocusMode = other.mFocusMode;
+            }
+            if(other.mFocusAreas != null) {
+                mFocusAreas = other.mFocusAreas;
+            }
+            if(other.mMeteringAreas != null) {
+                mMeteringAreas = other.mMeteringAreas;
+            }
+            if(other.mPreviewWidth > 0) {
+                mPreviewWidth = other.mPreviewWidth;
+                mPreviewHeight = other.mPreviewHeight;
+            }
+            if(other.mZoom >= 0) {
+                mZoom = other.mZoom;
+            }
+            if(other.mFpsRange != null) {
+                mFpsRange = other.mFpsRange;
+            }
+        }
+
+        private void applyTo(Camera.Parameters parameters) {
+            if(mFlashMode != null) {
+                parameters.setFlashMode(mFlashMode);
+            }
+            if(mFocusMode != null) {
+                parameters.setFocusMode(mFocusMode);
+            }
+            if(mFocusAreas != null) {
+                parameters.setFocusAreas(mFocusAreas);
+            }
+            if(mMeteringAreas != null) {
+                parameters.setMeteringAreas(mMeteringAreas);
+            }
+            if(mPreviewWidth > 0 && mPreviewHeight > 0) {
+                parameters.setPreviewSize(mPreviewWidth, mPreviewHeight);
+            }
+            if(mZoom >= 0) {
+                parameters.setZoom(mZoom);
+            }
+            if(mFpsRange != null) {
+                parameters.setPreviewFpsRange(mFpsRange[0], mFpsRange[1]);
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package me.dm7.barcodescanner.core;
 
+import android.content.Context;
 import android.hardware.Camera;
 
+import java.util.ArrayList;
 import java.util.List;
 
 public class CameraUtils {
@@ -25,6 +27,28 @@ public class CameraUtils {
         return defaultCameraId;
     }
 
+    /**
+     * Same as {@link #getDefaultCameraId()}, but answered from the {@link CameraCapabilitiesCache}
+     * so that the cameras only have to be queried once. Never reads the cache file, so it is
+     * safe to call on the main thread, but queries the cameras until the file has been read.
+     */
+    public static int getDefaultCameraId(Context context) {
+        CameraCapabilitiesCache cache = CameraCapabilitiesCache.getInstance(context);
+        int numberOfCameras = cache.getNumberOfCameras();
+        int defaultCameraId = -1;
+        for (int i = 0; i < numberOfCameras; i++) {
+            CameraCapabilities capabilities = cache.getCapabilities(i);
+            if (capabilities == null) {
+                continue;
+            }
+            defaultCameraId = i;
+            if (capabilities.getFacing() == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                return i;
+            }
+        }
+        return defaultCameraId;
+    }
+
     /** A safe way to get an instance of the Camera object. */
     public static Camera getCameraInstance(int cameraId) {
         Camera c = null;
@@ -41,20 +65,38 @@ public class CameraUtils {
         return c; // returns null if camera is unavailable
     }
 
+    /**
+     * Returns the sizes whose aspect ratio is within the tolerance of width / height, or all
+     * sizes if none is.
+     */
+    public static List<Camera.Size> getSizesWithAspectRatio(List<Camera.Size> sizes, int width, int height,
+                                                            float aspectTolerance) {
+        double targetRatio = (double) width / height;
+        List<Camera.Size> matchingSizes = new ArrayList<>();
+        for (Camera.Size size : sizes) {
+            double ratio = (double) size.width / size.height;
+            if (Math.abs(ratio - targetRatio) <= aspectTolerance) {
+                matchingSizes.add(size);
+            }
+        }
+        return matchingSizes.isEmpty() ? sizes : matchingSizes;
+    }
+
     public static boolean isFlashSupported(Camera camera) {
-        /* Credits: Top answer at http://stackoverflow.com/a/19599365/868173 */
         if (camera != null) {
-            Camera.Parameters parameters = camera.getParameters();
+            return isFlashSupported(camera.getParameters());
+        }
+        return false;
+    }
 
-            if (parameters.getFlashMode() == null) {
-                return false;
-            }
+    public static boolean isFlashSupported(Camera.Parameters parameters) {
+        /* Credits: Top answer at http://stackoverflow.com/a/19599365/868173 */
+        if (parameters.getFlashMode() == null) {
+            return false;
+        }
 
-            List<String> supportedFlashModes = parameters.getSupportedFlashModes();
-            if (supportedFlashModes == null || supportedFlashModes.isEmpty() || supportedFlashModes.size() == 1 && supportedFlashModes.get(0).equals(Camera.Parameters.FLASH_MODE_OFF)) {
-                return false;
-            }
-        } else {
+        List<String> supportedFlashModes = parameters.getSupportedFlashModes();
+        if (supportedFlashModes == null || supportedFlashModes.isEmpty() || supportedFlashModes.size() == 1 && supportedFlashModes.get(0).equals(Camera.Parameters.FLASH_MODE_OFF)) {
             return false;
         }
 
@@ -0,0 +1,185 @@
+package me.dm7.barcodescanner.core;
+
+import android.util.Log;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs {@link FrameDecoder}s on the decode threads of the {@link ScannerRuntime}, separate from
+ * the camera thread.
+ * <p>The camera thread hands frames over through a single slot: a frame that arrives while an
+ * older one is still waiting replaces it, and the replaced frame is given back right away.
+ * Every decoder gets its own worker, so with N decoders up to N consecutive frames are decoded
+ * at the same time, while the camera thread never blocks.</p>
+ * <p>Frames that are older than the frame deadline when a worker picks them up are dropped
+ * without decoding, and every frame gets a decode time budget that decoders check through
+ * {@link PreviewFrame#shouldAbort()}.</p>
+ */
+public class DecodeExecutor {
+    private static final String TAG = "DecodeExecutor";
+
+    public interface Callback {
+        /** A frame has been decoded and its buffer can be reused */
+        void onFrameDecoded(PreviewFrame frame, boolean found);
+
+        /** A frame was replaced by a newer one before it was decoded */
+        void onFrameDropped(PreviewFrame frame);
+
+        /** A frame was older than the frame deadline and was not decoded */
+        void onFrameExpired(PreviewFrame frame);
+    }
+
+    private final Callback mCallback;
+    private final Executor mExecutor;
+    private final Worker[] mWorkers;
+    private final Queue<Worker> mIdleWorkers = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<PreviewFrame> mPendingFrame = new AtomicReference<>();
+    private volatile long mFrameDeadlineNanos;
+    private volatile long mDecodeBudgetNanos;
+    private volatile boolean mShutdown;
+
+    public DecodeExecutor(List<FrameDecoder> decoders, Callback callback) {
+        if(decoders.isEmpty()) {
+            throw new IllegalArgumentException("At least one decoder is needed");
+        }
+        mCallback = callback;
+        mWorkers = new Worker[decoders.size()];
+        for(int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(decoders.get(i));
+            mIdleWorkers.add(mWorkers[i]);
+        }
+
+        mExecutor = ScannerRuntime.getInstance().acquireDecodeExecutor();
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /** Frames older than this when decoding would start are dropped, 0 to decode every frame */
+    public void setFrameDeadline(long deadlineMillis) {
+        mFrameDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, deadlineMillis));
+    }
+
+    /** Time a decoder may spend on a single frame before it should give up, 0 for no limit */
+    public void setDecodeBudget(long budgetMillis) {
+        mDecodeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, budgetMillis));
+    }
+
+    /** Queues a frame for decoding, replacing the frame that is still waiting, if any. */
+    public void submit(PreviewFrame frame) {
+        PreviewFrame replaced = mPendingFrame.getAndSet(frame);
+        if(replaced != null) {
+            mCallback.onFrameDropped(replaced);
+        }
+        dispatch();
+    }
+
+    /** Gives back the frame that is waiting to be decoded, if any. */
+    public void clear() {
+        PreviewFrame frame = mPendingFrame.getAndSet(null);
+        if(frame != null) {
+            mCallback.onFrameDropped(frame);
+        }
+    }
+
+    /**
+     * Drops the waiting frame and marks every frame that is being decoded as cancelled, e.g.
+     * because one of them already produced a result.
+     */
+    public void cancel() {
+        clear();
+        for(Worker worker : mWorkers) {
+            PreviewFrame frame = worker.mFrame;
+            if(frame != null) {
+                frame.cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels all work and lets go of the decode threads. Frames that are submitted afterwards
+     * are dropped.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if(mShutdown) {
+                return;
+            }
+            mShutdown = true;
+        }
+        cancel();
+        ScannerRuntime.getInstance().releaseDecodeExecutor();
+    }
+
+    // Both the camera thread (after filling the slot) and the workers (after going idle) call
+    // this, so whichever comes second pairs the waiting frame with the idle worker.
+    private void dispatch() {
+        if(mShutdown) {
+            clear();
+            return;
+        }
+        while(mPendingFrame.get() != null) {
+            Worker worker = mIdleWorkers.poll();
+            if(worker == null) {
+                return;
+            }
+            PreviewFrame frame = mPendingFrame.getAndSet(null);
+            if(frame == null) {
+                mIdleWorkers.add(worker);
+                continue;
+            }
+
+            worker.mFrame = frame;
+            try {
+                mExecutor.execute(worker);
+            } catch (RuntimeException e) {
+                // The runtime has been shut down in the meantime
+                worker.mFrame = null;
+                mIdleWorkers.add(worker);
+                mCallback.onFrameDropped(frame);
+                return;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final FrameDecoder mDecoder;
+        private volatile PreviewFrame mFrame;
+
+        Worker(FrameDecoder decoder) {
+            mDecoder = decoder;
+        }
+
+        @Override
+        public void run() {
+            PreviewFrame frame = mFrame;
+            long deadline = mFrameDeadlineNanos;
+            boolean expired = deadline > 0 && System.nanoTime() - frame.getTimestampNanos() > deadline;
+            boolean found = false;
+            try {
+                if(!expired && !frame.isCancelled()) {
+                    frame.startBudget(mDecodeBudgetNanos);
+                    found = mDecoder.decode(frame);
+                    frame.finishDecoding();
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, e.toString(), e);
+            } finally {
+                mFrame = null;
+                mIdleWorkers.add(this);
+                if(expired) {
+                    mCallback.onFrameExpired(frame);
+                } else {
+                    mCallback.onFrameDecoded(frame, found);
+                }
+            }
+            dispatch();
+        }
+    }
+}
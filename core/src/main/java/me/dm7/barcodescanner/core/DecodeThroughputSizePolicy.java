@@ -0,0 +1,81 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Picks the smallest size with the aspect ratio of the view at which the framing rect still
+ * covers enough preview pixels to decode the scanned formats. Smaller frames decode faster, so
+ * this trades picture quality on screen for decode throughput.
+ * <p>The required number of pixels across the shorter side of the framing rect depends on the
+ * densest format that is scanned for, unless it is given explicitly.</p>
+ */
+public class DecodeThroughputSizePolicy implements PreviewSizePolicy {
+    public static final int LINEAR_MIN_PIXELS = 240;
+    public static final int MATRIX_MIN_PIXELS = 320;
+    public static final int DENSE_MIN_PIXELS = 480;
+
+    private final int mMinPixels;
+
+    /** Derives the required pixel density from the scanned formats */
+    public DecodeThroughputSizePolicy() {
+        this(0);
+    }
+
+    /**
+     * @param minPixels number of preview pixels required across the shorter side of the framing
+     *                  rect, 0 to derive it from the scanned formats
+     */
+    public DecodeThroughputSizePolicy(int minPixels) {
+        mMinPixels = minPixels;
+    }
+
+    @Override
+    public Camera.Size selectPreviewSize(List<Camera.Size> sizes, int viewWidth, int viewHeight, Rect framingRect,
+                                         Collection<String> formats, float aspectTolerance) {
+        if(sizes == null || viewWidth <= 0 || viewHeight <= 0) {
+            return null;
+        }
+        int minPixels = mMinPixels > 0 ? mMinPixels : getMinPixels(formats);
+        // Without a framing rect the whole view is decoded
+        float rectWidth = framingRect != null ? (float) framingRect.width() / viewWidth : 1f;
+        float rectHeight = framingRect != null ? (float) framingRect.height() / viewHeight : 1f;
+
+        Camera.Size smallestSize = null;
+        Camera.Size largestSize = null;
+        for(Camera.Size size : CameraUtils.getSizesWithAspectRatio(sizes, viewWidth, viewHeight, aspectTolerance)) {
+            int area = size.width * size.height;
+            if(largestSize == null || area > largestSize.width * largestSize.height) {
+                largestSize = size;
+            }
+            float pixels = Math.min(size.width * rectWidth, size.height * rectHeight);
+            if(pixels >= minPixels && (smallestSize == null || area < smallestSize.width * smallestSize.height)) {
+                smallestSize = size;
+            }
+        }
+        // No size is dense enough, so get as close as possible
+        return smallestSize != null ? smallestSize : largestSize;
+    }
+
+    /** Pixel density needed by the densest of the given formats, named as by ZXing or ZBar */
+    public static int getMinPixels(Collection<String> formats) {
+        if(formats == null || formats.isEmpty()) {
+            return DENSE_MIN_PIXELS;
+        }
+        int minPixels = LINEAR_MIN_PIXELS;
+        for(String format : formats) {
+            String name = format.replace("_", "").toUpperCase(Locale.US);
+            if(name.equals("PDF417") || name.equals("DATAMATRIX") || name.equals("MAXICODE")) {
+                return DENSE_MIN_PIXELS;
+            }
+            if(name.equals("QRCODE") || name.equals("AZTEC")) {
+                minPixels = MATRIX_MIN_PIXELS;
+            }
+        }
+        return minPixels;
+    }
+}
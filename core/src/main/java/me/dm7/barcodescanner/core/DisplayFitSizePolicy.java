@@ -0,0 +1,48 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Picks the size whose height is closest to the height of the view, preferring sizes with the
+ * aspect ratio of the view. This gives the sharpest picture on screen, but not necessarily the
+ * fastest decoding.
+ */
+public class DisplayFitSizePolicy implements PreviewSizePolicy {
+    @Override
+    public Camera.Size selectPreviewSize(List<Camera.Size> sizes, int viewWidth, int viewHeight, Rect framingRect,
+                                         Collection<String> formats, float aspectTolerance) {
+        if (sizes == null) return null;
+
+        double targetRatio = (double) viewWidth / viewHeight;
+        Camera.Size optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
+
+        int targetHeight = viewHeight;
+
+        // Try to find an size match aspect ratio and size
+        for (Camera.Size size : sizes) {
+            double ratio = (double) size.width / size.height;
+            if (Math.abs(ratio - targetRatio) > aspectTolerance) continue;
+            if (Math.abs(size.height - targetHeight) < minDiff) {
+                optimalSize = size;
+                minDiff = Math.abs(size.height - targetHeight);
+            }
+        }
+
+        // Cannot find the one match the aspect ratio, ignore the requirement
+        if (optimalSize == null) {
+            minDiff = Double.MAX_VALUE;
+            for (Camera.Size size : sizes) {
+                if (Math.abs(size.height - targetHeight) < minDiff) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.height - targetHeight);
+                }
+            }
+        }
+        return optimalSize;
+    }
+}
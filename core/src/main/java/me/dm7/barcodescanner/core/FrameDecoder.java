@@ -0,0 +1,14 @@
+package me.dm7.barcodescanner.core;
+
+/**
+ * Decodes preview frames handed out by a {@link DecodeExecutor}. An instance is only ever used
+ * by one decode thread at a time, so it can keep reusable state such as readers and buffers.
+ */
+public interface FrameDecoder {
+    /**
+     * Decodes a frame and hands any result to the scanner view.
+     *
+     * @return true if a result was found in the frame
+     */
+    boolean decode(PreviewFrame frame);
+}
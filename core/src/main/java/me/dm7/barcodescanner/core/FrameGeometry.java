@@ -0,0 +1,124 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.res.Configuration;
+import android.graphics.Rect;
+
+/**
+ * Immutable snapshot of how preview frames of the current camera session are laid out.
+ * <p>It is taken once when the preview is set up (and again on configuration changes) so that
+ * the decode path does not have to query the camera or the display for every frame.</p>
+ */
+public final class FrameGeometry {
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mPreviewFormat;
+    private final int mDisplayOrientation;
+    private final int mScreenOrientation;
+    private final Rect mFramingRect;
+
+    public FrameGeometry(int previewWidth, int previewHeight, int previewFormat,
+                         int displayOrientation, int screenOrientation) {
+        this(previewWidth, previewHeight, previewFormat, displayOrientation, screenOrientation, null);
+    }
+
+    private FrameGeometry(int previewWidth, int previewHeight, int previewFormat,
+                          int displayOrientation, int screenOrientation, Rect framingRect) {
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        mPreviewFormat = previewFormat;
+        mDisplayOrientation = displayOrientation;
+        mScreenOrientation = screenOrientation;
+        mFramingRect = framingRect;
+    }
+
+    /** Returns a copy of this snapshot with the given framing rect, in frame coordinates. */
+    public FrameGeometry withFramingRect(Rect framingRect) {
+        return new FrameGeometry(mPreviewWidth, mPreviewHeight, mPreviewFormat,
+                mDisplayOrientation, mScreenOrientation, framingRect == null ? null : new Rect(framingRect));
+    }
+
+    /** Width of the preview frames as delivered by the camera */
+    public int getPreviewWidth() {
+        return mPreviewWidth;
+    }
+
+    /** Height of the preview frames as delivered by the camera */
+    public int getPreviewHeight() {
+        return mPreviewHeight;
+    }
+
+    public int getPreviewFormat() {
+        return mPreviewFormat;
+    }
+
+    /** Clockwise rotation in degrees that was applied to the camera display */
+    public int getDisplayOrientation() {
+        return mDisplayOrientation;
+    }
+
+    /** One of {@link Configuration#ORIENTATION_PORTRAIT}, {@link Configuration#ORIENTATION_LANDSCAPE} etc. */
+    public int getScreenOrientation() {
+        return mScreenOrientation;
+    }
+
+    public int getRotationCount() {
+        return mDisplayOrientation / 90;
+    }
+
+    /** Number of clockwise 90 degree turns that are applied to a preview frame before decoding */
+    public int getFrameRotationCount() {
+        return isPortrait() ? getRotationCount() : 0;
+    }
+
+    /** Frames are only rotated before decoding while the screen is in portrait */
+    public boolean isPortrait() {
+        return mScreenOrientation == Configuration.ORIENTATION_PORTRAIT;
+    }
+
+    /** True if frames have to be rotated by 90 or 270 degrees before decoding */
+    public boolean isRotated() {
+        int rotationCount = getRotationCount();
+        return isPortrait() && (rotationCount == 1 || rotationCount == 3);
+    }
+
+    /** Width of the frame that is handed to the decoder, i.e. after rotation */
+    public int getFrameWidth() {
+        return isRotated() ? mPreviewHeight : mPreviewWidth;
+    }
+
+    /** Height of the frame that is handed to the decoder, i.e. after rotation */
+    public int getFrameHeight() {
+        return isRotated() ? mPreviewWidth : mPreviewHeight;
+    }
+
+    /**
+     * Area of the frame (after rotation) that should be decoded, or null if the view finder
+     * has not been laid out yet. The returned rect must not be modified.
+     */
+    public Rect getFramingRect() {
+        return mFramingRect;
+    }
+
+    /**
+     * The framing rect mapped back into the coordinates of the preview frame as the camera
+     * delivers it, or null if there is no framing rect yet.
+     */
+    public Rect getPreviewFramingRect() {
+        Rect rect = mFramingRect;
+        if(rect == null) {
+            return null;
+        }
+        int width = mPreviewWidth;
+        int height = mPreviewHeight;
+        switch (getFrameRotationCount()) {
+            case 1:
+                return new Rect(rect.top, height - rect.right, rect.bottom, height - rect.left);
+            case 2:
+                return new Rect(width - rect.right, height - rect.bottom, width - rect.left, height - rect.top);
+            case 3:
+                return new Rect(width - rect.bottom, rect.left, width - rect.top, rect.right);
+            default:
+                return new Rect(rect);
+        }
+    }
+}
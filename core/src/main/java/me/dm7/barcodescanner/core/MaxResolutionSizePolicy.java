@@ -0,0 +1,28 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Picks the largest size with the aspect ratio of the view, for codes that are too small or too
+ * dense to decode at lower resolutions. Decoding gets slower accordingly.
+ */
+public class MaxResolutionSizePolicy implements PreviewSizePolicy {
+    @Override
+    public Camera.Size selectPreviewSize(List<Camera.Size> sizes, int viewWidth, int viewHeight, Rect framingRect,
+                                         Collection<String> formats, float aspectTolerance) {
+        if(sizes == null) {
+            return null;
+        }
+        Camera.Size largestSize = null;
+        for(Camera.Size size : CameraUtils.getSizesWithAspectRatio(sizes, viewWidth, viewHeight, aspectTolerance)) {
+            if(largestSize == null || size.width * size.height > largestSize.width * largestSize.height) {
+                largestSize = size;
+            }
+        }
+        return largestSize;
+    }
+}
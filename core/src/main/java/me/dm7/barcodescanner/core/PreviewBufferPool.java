@@ -0,0 +1,120 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fixed set of preview buffers that are registered with the camera through
+ * {@link Camera#addCallbackBuffer(byte[])}, so that the framework does not have to allocate
+ * a new byte[] for every preview frame.
+ * <p>A buffer that has been handed out with a frame is only given back to the camera once
+ * {@link #recycle(byte[])} is called, i.e. after decoding of that frame has finished.</p>
+ */
+public class PreviewBufferPool implements Camera.PreviewCallback {
+    // One buffer being decoded, one waiting for the decoder and one being filled by the camera
+    public static final int DEFAULT_BUFFER_COUNT = 3;
+
+    private final Camera.PreviewCallback mPreviewCallback;
+    private final int mBufferCount;
+
+    // Buffers that are neither queued in the camera nor handed out with a frame
+    private final List<byte[]> mFreeBuffers = new ArrayList<>();
+    // Buffers that have been given to the camera with addCallbackBuffer()
+    private final Set<byte[]> mQueuedBuffers = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+    private Camera mCamera;
+    private int mBufferSize;
+    private int mAllocatedCount;
+
+    public PreviewBufferPool(Camera.PreviewCallback previewCallback, int bufferCount) {
+        if (bufferCount < 1) {
+            throw new IllegalArgumentException("Buffer count must be at least 1");
+        }
+        mPreviewCallback = previewCallback;
+        mBufferCount = bufferCount;
+    }
+
+    public int getBufferCount() {
+        return mBufferCount;
+    }
+
+    /**
+     * Registers this pool as the buffered preview callback of the camera and queues every buffer
+     * that is not currently handed out. Buffers are (re)allocated when the frame size changes.
+     */
+    public synchronized void attach(Camera camera, int previewWidth, int previewHeight, int previewFormat) {
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(previewFormat);
+        if(bitsPerPixel <= 0) {
+            bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+        }
+        int bufferSize = previewWidth * previewHeight * bitsPerPixel / 8;
+
+        // Whatever was queued in a previous session has been dropped by the camera
+        mFreeBuffers.addAll(mQueuedBuffers);
+        mQueuedBuffers.clear();
+
+        if(bufferSize != mBufferSize) {
+            // Buffers of the old size that are still handed out are dropped in recycle()
+            mFreeBuffers.clear();
+            mBufferSize = bufferSize;
+            mAllocatedCount = 0;
+        }
+        while(mAllocatedCount < mBufferCount) {
+            mFreeBuffers.add(new byte[bufferSize]);
+            mAllocatedCount++;
+        }
+
+        mCamera = camera;
+        camera.setPreviewCallbackWithBuffer(this);
+        for(byte[] buffer : mFreeBuffers) {
+            camera.addCallbackBuffer(buffer);
+            mQueuedBuffers.add(buffer);
+        }
+        mFreeBuffers.clear();
+    }
+
+    /**
+     * Stops handing buffers to the camera. The buffers themselves are kept so that the next
+     * {@link #attach(Camera, int, int, int)} with the same frame size does not allocate.
+     */
+    public synchronized void detach() {
+        mCamera = null;
+        mFreeBuffers.addAll(mQueuedBuffers);
+        mQueuedBuffers.clear();
+    }
+
+    /**
+     * Returns a buffer that was delivered with a preview frame. It is queued in the camera again
+     * if the pool is attached, and kept for the next session otherwise.
+     */
+    public synchronized void recycle(byte[] buffer) {
+        if(buffer == null || buffer.length != mBufferSize || mQueuedBuffers.contains(buffer)) {
+            return;
+        }
+        for(byte[] freeBuffer : mFreeBuffers) {
+            if(freeBuffer == buffer) {
+                return;
+            }
+        }
+
+        if(mCamera != null) {
+            mCamera.addCallbackBuffer(buffer);
+            mQueuedBuffers.add(buffer);
+        } else {
+            mFreeBuffers.add(buffer);
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        synchronized (this) {
+            mQueuedBuffers.remove(data);
+        }
+        mPreviewCallback.onPreviewFrame(data, camera);
+    }
+}
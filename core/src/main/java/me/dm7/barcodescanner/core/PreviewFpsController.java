@@ -0,0 +1,143 @@
+package me.dm7.barcodescanner.core;
+
+import android.hardware.Camera;
+
+import java.util.List;
+
+/**
+ * Picks the preview fps range of the camera.
+ * <p>In the {@link Profile#ADAPTIVE} profile the decode time is measured and the range is
+ * narrowed to the slowest one that still delivers frames a bit faster than the decode threads
+ * can take them. Frames beyond that would only be dropped, at the cost of power and buffer
+ * churn.</p>
+ */
+public class PreviewFpsController {
+    public enum Profile {
+        /** Keeps the fps range the camera starts with */
+        CAMERA_DEFAULT,
+        /** Matches the fps range to the measured decode throughput */
+        ADAPTIVE,
+        /** Slowest range that still gives a usable preview */
+        LOW_POWER,
+        /** Fastest range, with the highest minimum, so frames arrive as soon as possible */
+        MAX_RESPONSIVENESS
+    }
+
+    private static final int LOW_POWER_FPS = 10;
+    private static final int WINDOW_SIZE = 30;
+    private static final long MIN_CHANGE_INTERVAL_NANOS = 3000000000L;
+    // Deliver a quarter more frames than can be decoded, so decoders never wait for the camera
+    private static final float THROUGHPUT_HEADROOM = 1.25f;
+
+    private final CameraSettings mCameraSettings;
+    private final Profile mProfile;
+    private final int mDecoderThreadCount;
+
+    // Guarded by this
+    private int[] mFpsRange;
+    private long mWindowNanos;
+    private int mWindowSamples;
+    private long mLastChangeNanos;
+
+    public PreviewFpsController(CameraSettings cameraSettings, Profile profile, int decoderThreadCount) {
+        mCameraSettings = cameraSettings;
+        mProfile = profile != null ? profile : Profile.CAMERA_DEFAULT;
+        mDecoderThreadCount = Math.max(1, decoderThreadCount);
+
+        List<int[]> ranges = cameraSettings.getSupportedPreviewFpsRange();
+        if(ranges == null || ranges.isEmpty()) {
+            return;
+        }
+        switch (mProfile) {
+            case LOW_POWER:
+                mFpsRange = selectFpsRange(ranges, LOW_POWER_FPS);
+                break;
+            case MAX_RESPONSIVENESS:
+                mFpsRange = selectFastestFpsRange(ranges);
+                break;
+            default:
+                // Adaptive starts out with the camera's range until there are measurements
+                break;
+        }
+    }
+
+    public Profile getProfile() {
+        return mProfile;
+    }
+
+    /** Range to set up the preview with, or null to keep the camera's */
+    public synchronized int[] getFpsRange() {
+        return mFpsRange != null ? mFpsRange.clone() : null;
+    }
+
+    /** Feeds the decode time of a frame into the controller. Safe to call from any thread. */
+    public void onFrameDecoded(long decodeTimeNanos) {
+        if(mProfile != Profile.ADAPTIVE || decodeTimeNanos <= 0) {
+            return;
+        }
+        int[] fpsRange;
+        synchronized (this) {
+            mWindowNanos += decodeTimeNanos;
+            mWindowSamples++;
+            if(mWindowSamples < WINDOW_SIZE) {
+                return;
+            }
+            long averageNanos = mWindowNanos / mWindowSamples;
+            mWindowNanos = 0;
+            mWindowSamples = 0;
+
+            long now = System.nanoTime();
+            if(mLastChangeNanos != 0 && now - mLastChangeNanos < MIN_CHANGE_INTERVAL_NANOS) {
+                return;
+            }
+            List<int[]> ranges = mCameraSettings.getSupportedPreviewFpsRange();
+            if(ranges == null || ranges.isEmpty()) {
+                return;
+            }
+            float throughput = mDecoderThreadCount * 1000000000f / averageNanos;
+            fpsRange = selectFpsRange(ranges, (int) Math.ceil(throughput * THROUGHPUT_HEADROOM));
+            if(mFpsRange != null && mFpsRange[0] == fpsRange[0] && mFpsRange[1] == fpsRange[1]) {
+                return;
+            }
+            mFpsRange = fpsRange;
+            mLastChangeNanos = now;
+        }
+        int min = fpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+        int max = fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        mCameraSettings.edit().setPreviewFpsRange(min, max).apply();
+    }
+
+    /**
+     * Returns the range with the lowest maximum that reaches targetFps, preferring the lower
+     * minimum on a tie, or the fastest range if none reaches it.
+     */
+    public static int[] selectFpsRange(List<int[]> ranges, int targetFps) {
+        int target = targetFps * 1000;
+        int[] selected = null;
+        for(int[] range : ranges) {
+            int max = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+            if(max < target) {
+                continue;
+            }
+            if(selected == null || max < selected[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    || max == selected[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    && range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] < selected[Camera.Parameters.PREVIEW_FPS_MIN_INDEX]) {
+                selected = range;
+            }
+        }
+        return selected != null ? selected : selectFastestFpsRange(ranges);
+    }
+
+    /** Returns the range with the highest maximum, preferring the higher minimum on a tie */
+    public static int[] selectFastestFpsRange(List<int[]> ranges) {
+        int[] selected = null;
+        for(int[] range : ranges) {
+            if(selected == null || range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] > selected[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    || range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] == selected[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                    && range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] > selected[Camera.Parameters.PREVIEW_FPS_MIN_INDEX]) {
+                selected = range;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,152 @@
+package me.dm7.barcodescanner.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A preview frame on its way from the camera to a {@link FrameDecoder}, together with the
+ * geometry snapshot that was current when the frame arrived and the time it arrived at.
+ * <p>Frames of the Camera API come as an NV21 byte array. Frames of the Camera2 backend come as
+ * the Y plane of the image, a direct buffer whose rows may be padded to the row stride.</p>
+ */
+public final class PreviewFrame {
+    private final byte[] mData;
+    private final ByteBuffer mBuffer;
+    private final int mRowStride;
+    private final Runnable mOnRelease;
+    private final FrameGeometry mGeometry;
+    private final long mTimestampNanos;
+    private volatile boolean mCancelled;
+    private volatile long mBudgetEndNanos;
+    private volatile boolean mOverBudget;
+    private volatile long mDecodeStartNanos;
+    private volatile long mDecodeTimeNanos = -1;
+
+    public PreviewFrame(byte[] data, FrameGeometry geometry) {
+        this(data, geometry, System.nanoTime());
+    }
+
+    public PreviewFrame(byte[] data, FrameGeometry geometry, long timestampNanos) {
+        mData = data;
+        mBuffer = null;
+        mRowStride = geometry != null ? geometry.getPreviewWidth() : 0;
+        mOnRelease = null;
+        mGeometry = geometry;
+        mTimestampNanos = timestampNanos;
+    }
+
+    /**
+     * A frame whose luminance is read from a buffer, e.g. the Y plane of a Camera2 image.
+     * onRelease runs once the frame is done with and the buffer must not be read anymore.
+     */
+    public PreviewFrame(ByteBuffer buffer, int rowStride, FrameGeometry geometry, long timestampNanos,
+                        Runnable onRelease) {
+        mData = null;
+        mBuffer = buffer;
+        mRowStride = rowStride;
+        mOnRelease = onRelease;
+        mGeometry = geometry;
+        mTimestampNanos = timestampNanos;
+    }
+
+    /** Unrotated frame data as delivered by the camera, or null if the frame comes as a buffer */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /** Unrotated luminance plane, or null if the frame comes as a byte array */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /** Distance in bytes between the starts of two rows of luminance */
+    public int getRowStride() {
+        return mRowStride;
+    }
+
+    /**
+     * Unrotated luminance rows of preview width without padding. Byte array frames return their
+     * data, buffer frames are copied row by row into reuse if it is large enough, or into a new
+     * array otherwise.
+     */
+    public byte[] getLuminance(byte[] reuse) {
+        if(mData != null) {
+            return mData;
+        }
+        int width = mGeometry.getPreviewWidth();
+        int height = mGeometry.getPreviewHeight();
+        byte[] luminance = reuse != null && reuse.length >= width * height ? reuse : new byte[width * height];
+        ByteBuffer buffer = mBuffer.duplicate();
+        if(mRowStride == width) {
+            buffer.position(0);
+            buffer.get(luminance, 0, width * height);
+        } else {
+            for(int y = 0; y < height; y++) {
+                buffer.position(y * mRowStride);
+                buffer.get(luminance, y * width, width);
+            }
+        }
+        return luminance;
+    }
+
+    /** Hands a buffer frame back to where it came from, does nothing for byte array frames */
+    void release() {
+        if(mOnRelease != null) {
+            mOnRelease.run();
+        }
+    }
+
+    public FrameGeometry getGeometry() {
+        return mGeometry;
+    }
+
+    /** Capture time of the frame, in {@link System#nanoTime()} units */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /** Asks the decoder to give up on this frame, e.g. because another frame produced a result */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /** Gives the decoder budgetNanos from now on to finish this frame, 0 for no limit */
+    void startBudget(long budgetNanos) {
+        long now = System.nanoTime();
+        mDecodeStartNanos = now;
+        mBudgetEndNanos = budgetNanos > 0 ? now + budgetNanos : 0;
+    }
+
+    void finishDecoding() {
+        mDecodeTimeNanos = System.nanoTime() - mDecodeStartNanos;
+    }
+
+    /** Time the decoder spent on this frame, or -1 if it has not been decoded */
+    public long getDecodeTimeNanos() {
+        return mDecodeTimeNanos;
+    }
+
+    /**
+     * Decoders call this between decoding stages and stop early when it returns true, which is
+     * the case once the frame has been cancelled or its time budget is used up.
+     */
+    public boolean shouldAbort() {
+        if(mCancelled) {
+            return true;
+        }
+        long budgetEnd = mBudgetEndNanos;
+        if(budgetEnd != 0 && System.nanoTime() - budgetEnd > 0) {
+            mOverBudget = true;
+            return true;
+        }
+        return false;
+    }
+
+    /** True if a decoder gave up on this frame because it ran out of time */
+    public boolean isOverBudget() {
+        return mOverBudget;
+    }
+}
@@ -0,0 +1,26 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Picks the preview size of the camera out of the supported sizes.
+ * <p>Sizes are given in sensor orientation, i.e. landscape, and so are the view size and the
+ * framing rect that are passed in.</p>
+ */
+public interface PreviewSizePolicy {
+    /**
+     * @param sizes preview sizes supported by the camera
+     * @param viewWidth width of the preview view, turned to sensor orientation
+     * @param viewHeight height of the preview view, turned to sensor orientation
+     * @param framingRect area of the view that is decoded, or null if it is not known yet
+     * @param formats names of the barcode formats that are scanned for, empty if unknown
+     * @param aspectTolerance how far the aspect ratio of the size may be off from the view's
+     * @return one of sizes, or null if sizes is empty
+     */
+    Camera.Size selectPreviewSize(List<Camera.Size> sizes, int viewWidth, int viewHeight, Rect framingRect,
+                                  Collection<String> formats, float aspectTolerance);
+}
@@ -0,0 +1,95 @@
+package me.dm7.barcodescanner.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Suppresses repeated results for the same code within a time window.
+ * <p>Results are keyed by their format and a hash of their contents, so it works the same for
+ * the result types of every decoder. The map is bounded: entries expire after the window, and
+ * the oldest entries are evicted once more than the capacity of codes were seen in one window.</p>
+ */
+public class ResultDeduplicator {
+    public static final long DEFAULT_WINDOW_MILLIS = 1500;
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final int mCapacity;
+    private long mWindowMillis;
+
+    // Insertion ordered, so the eldest entry is always the one that was delivered first
+    private final LinkedHashMap<Long, Delivery> mEntries = new LinkedHashMap<Long, Delivery>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Delivery> eldest) {
+            return size() > mCapacity;
+        }
+    };
+
+    private static class Delivery {
+        final String mContents;
+        final long mDeliveredAt;
+
+        Delivery(String contents, long deliveredAt) {
+            mContents = contents;
+            mDeliveredAt = deliveredAt;
+        }
+    }
+
+    public ResultDeduplicator() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    public ResultDeduplicator(long windowMillis, int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        mWindowMillis = windowMillis;
+        mCapacity = capacity;
+    }
+
+    public synchronized void setWindow(long windowMillis) {
+        mWindowMillis = windowMillis;
+    }
+
+    public synchronized long getWindow() {
+        return mWindowMillis;
+    }
+
+    /**
+     * Returns true if the result should be delivered, i.e. the same code has not been delivered
+     * within the window, and records it as delivered.
+     */
+    public synchronized boolean accept(Object format, String contents, long nowMillis) {
+        if(mWindowMillis <= 0) {
+            return true;
+        }
+        evictExpired(nowMillis);
+
+        int formatHash = format == null ? 0 : format.hashCode();
+        int contentsHash = contents == null ? 0 : contents.hashCode();
+        Long key = ((long) formatHash << 32) | (contentsHash & 0xffffffffL);
+
+        Delivery entry = mEntries.get(key);
+        if(entry != null && (entry.mContents == null ? contents == null : entry.mContents.equals(contents))) {
+            return false;
+        }
+        // Re-insert so that the entry moves to the end of the eviction order
+        mEntries.remove(key);
+        mEntries.put(key, new Delivery(contents, nowMillis));
+        return true;
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private void evictExpired(long nowMillis) {
+        Iterator<Delivery> iterator = mEntries.values().iterator();
+        while(iterator.hasNext()) {
+            if(nowMillis - iterator.next().mDeliveredAt < mWindowMillis) {
+                return;
+            }
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package me.dm7.barcodescanner.core;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands results from the decode threads over to the main thread, or to an executor supplied by
+ * the app.
+ * <p>Results that arrive while a hand-over is still pending are delivered with it, so a burst of
+ * results, e.g. from several decode threads working on the same frame, costs a single post.</p>
+ */
+public class ResultDispatcher {
+    /**
+     * A result on its way to the result handler. If {@link #needsPreparation()},
+     * {@link #prepare()} runs on the main thread first, so it can touch the view and the camera.
+     * {@link #deliver()} runs on the executor, or on the main thread if there is none. Deliveries
+     * that need no preparation go to the executor straight from the decode thread.
+     */
+    public abstract static class Delivery {
+        protected boolean needsPreparation() {
+            return false;
+        }
+
+        protected void prepare() {
+        }
+
+        protected abstract void deliver();
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Queue<Delivery> mPendingPreparations = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mMainScheduled = new AtomicBoolean();
+    private final Queue<Delivery> mPendingDeliveries = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mExecutorScheduled = new AtomicBoolean();
+    private volatile Executor mExecutor;
+
+    private final Runnable mMainDrain = new Runnable() {
+        @Override
+        public void run() {
+            // Reset before draining, a delivery queued after the last poll schedules a new run
+            mMainScheduled.set(false);
+            Executor executor = mExecutor;
+            Delivery delivery;
+            while((delivery = mPendingPreparations.poll()) != null) {
+                if(delivery.needsPreparation()) {
+                    delivery.prepare();
+                }
+                if(executor != null) {
+                    deliverOn(executor, delivery);
+                } else {
+                    delivery.deliver();
+                }
+            }
+        }
+    };
+
+    private final Runnable mExecutorDrain = new Runnable() {
+        @Override
+        public void run() {
+            mExecutorScheduled.set(false);
+            Delivery delivery;
+            while((delivery = mPendingDeliveries.poll()) != null) {
+                delivery.deliver();
+            }
+        }
+    };
+
+    /**
+     * Executor that {@link Delivery#deliver()} runs on, or null, the default, to run it on the
+     * main thread.
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public Executor getExecutor() {
+        return mExecutor;
+    }
+
+    public void dispatch(Delivery delivery) {
+        Executor executor = mExecutor;
+        if(executor != null && !delivery.needsPreparation()) {
+            deliverOn(executor, delivery);
+            return;
+        }
+        mPendingPreparations.add(delivery);
+        if(mMainScheduled.compareAndSet(false, true)) {
+            mMainHandler.post(mMainDrain);
+        }
+    }
+
+    private void deliverOn(Executor executor, Delivery delivery) {
+        mPendingDeliveries.add(delivery);
+        if(mExecutorScheduled.compareAndSet(false, true)) {
+            executor.execute(mExecutorDrain);
+        }
+    }
+}
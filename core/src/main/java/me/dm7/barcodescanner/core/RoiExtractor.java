@@ -0,0 +1,134 @@
+package me.dm7.barcodescanner.core;
+
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies the luminance of the framing rect out of a preview frame and rotates it in the same pass.
+ * <p>The framing rect of a {@link FrameGeometry} is expressed in rotated frame coordinates, so it
+ * is mapped back into sensor coordinates and only those pixels are touched, instead of rotating
+ * the whole frame first and cropping afterwards.</p>
+ * <p>Frames that come as a buffer, e.g. the Y plane of a Camera2 image, are read row by row, so
+ * only the rows of the framing rect are copied out of the buffer.</p>
+ * <p>The output buffer is reused between frames, so an instance must not be shared between
+ * threads and the returned array is only valid until the next call to {@link #extract}.</p>
+ */
+public class RoiExtractor {
+    private byte[] mBuffer;
+    // Unrotated framing rect of buffer frames, before it is rotated into mBuffer
+    private byte[] mRegion;
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * Returns a tightly packed luminance buffer of {@link #getWidth()} x {@link #getHeight()}
+     * pixels, or null if the geometry has no usable framing rect.
+     */
+    public byte[] extract(byte[] data, FrameGeometry geometry) {
+        return extract(data, null, 0, geometry);
+    }
+
+    /**
+     * Same as {@link #extract(byte[], FrameGeometry)} for a luminance plane in a buffer, with
+     * rows rowStride bytes apart.
+     */
+    public byte[] extract(ByteBuffer data, int rowStride, FrameGeometry geometry) {
+        return extract(null, data, rowStride, geometry);
+    }
+
+    private byte[] extract(byte[] array, ByteBuffer buffer, int rowStride, FrameGeometry geometry) {
+        Rect framingRect = geometry.getFramingRect();
+        if(framingRect == null) {
+            return null;
+        }
+        int frameWidth = geometry.getFrameWidth();
+        int frameHeight = geometry.getFrameHeight();
+        int left = Math.max(0, framingRect.left);
+        int top = Math.max(0, framingRect.top);
+        int right = Math.min(frameWidth, framingRect.right);
+        int bottom = Math.min(frameHeight, framingRect.bottom);
+        if(right <= left || bottom <= top) {
+            return null;
+        }
+
+        mWidth = right - left;
+        mHeight = bottom - top;
+        int size = mWidth * mHeight;
+        if(mBuffer == null || mBuffer.length != size) {
+            mBuffer = new byte[size];
+        }
+
+        int dataWidth = geometry.getPreviewWidth();
+        int dataHeight = geometry.getPreviewHeight();
+        int rotationCount = geometry.getFrameRotationCount();
+
+        // Map the rect from rotated frame coordinates back into sensor coordinates
+        int regionLeft;
+        int regionTop;
+        int regionWidth;
+        int regionHeight;
+        switch (rotationCount) {
+            case 1:
+                regionLeft = top;
+                regionTop = dataHeight - right;
+                regionWidth = mHeight;
+                regionHeight = mWidth;
+                break;
+            case 2:
+                regionLeft = dataWidth - right;
+                regionTop = dataHeight - bottom;
+                regionWidth = mWidth;
+                regionHeight = mHeight;
+                break;
+            case 3:
+                regionLeft = dataWidth - bottom;
+                regionTop = left;
+                regionWidth = mHeight;
+                regionHeight = mWidth;
+                break;
+            default:
+                regionLeft = left;
+                regionTop = top;
+                regionWidth = mWidth;
+                regionHeight = mHeight;
+                break;
+        }
+
+        if(array != null) {
+            RotationUtils.rotateRegion(array, dataWidth, regionLeft, regionTop, regionWidth, regionHeight,
+                    rotationCount, mBuffer);
+            return mBuffer;
+        }
+
+        if(rotationCount == 0) {
+            copyRegion(buffer, rowStride, regionLeft, regionTop, regionWidth, regionHeight, mBuffer);
+            return mBuffer;
+        }
+        if(mRegion == null || mRegion.length != size) {
+            mRegion = new byte[size];
+        }
+        copyRegion(buffer, rowStride, regionLeft, regionTop, regionWidth, regionHeight, mRegion);
+        RotationUtils.rotateRegion(mRegion, regionWidth, 0, 0, regionWidth, regionHeight, rotationCount, mBuffer);
+        return mBuffer;
+    }
+
+    private static void copyRegion(ByteBuffer buffer, int rowStride, int left, int top, int width, int height,
+                                   byte[] target) {
+        ByteBuffer rows = buffer.duplicate();
+        for(int y = 0; y < height; y++) {
+            rows.position((top + y) * rowStride + left);
+            rows.get(target, y * width, width);
+        }
+    }
+
+    /** Width of the buffer returned by the last call to {@link #extract} */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** Height of the buffer returned by the last call to {@link #extract} */
+    public int getHeight() {
+        return mHeight;
+    }
+}
@@ -0,0 +1,100 @@
+package me.dm7.barcodescanner.core;
+
+/**
+ * Single pass rotation of the luminance plane of preview frames.
+ * <p>All methods write into a caller supplied buffer, so callers can reuse it between frames.
+ * The 90 and 270 degree kernels walk the source in square tiles, so that neither the reads nor
+ * the strided writes leave the cache on large frames.</p>
+ */
+public class RotationUtils {
+    private static final int TILE_SIZE = 32;
+
+    /**
+     * Rotates the luminance plane of a whole frame clockwise by rotationCount * 90 degrees.
+     *
+     * @param src frame data, at least width * height bytes
+     * @param dst output buffer, at least width * height bytes
+     */
+    public static void rotate(byte[] src, int width, int height, int rotationCount, byte[] dst) {
+        rotateRegion(src, width, 0, 0, width, height, rotationCount, dst);
+    }
+
+    /**
+     * Rotates a region of the luminance plane clockwise by rotationCount * 90 degrees.
+     * The output is tightly packed: regionHeight pixels wide for 90 and 270 degrees,
+     * regionWidth pixels wide otherwise.
+     *
+     * @param src frame data
+     * @param srcWidth row length of the frame data
+     * @param left left edge of the region in the frame data
+     * @param top top edge of the region in the frame data
+     * @param dst output buffer, at least regionWidth * regionHeight bytes
+     */
+    public static void rotateRegion(byte[] src, int srcWidth, int left, int top, int regionWidth,
+                                    int regionHeight, int rotationCount, byte[] dst) {
+        int offset = top * srcWidth + left;
+        switch (rotationCount & 3) {
+            case 0:
+                for (int y = 0; y < regionHeight; y++) {
+                    System.arraycopy(src, offset + y * srcWidth, dst, y * regionWidth, regionWidth);
+                }
+                break;
+            case 1:
+                rotate90(src, srcWidth, offset, regionWidth, regionHeight, dst);
+                break;
+            case 2:
+                rotate180(src, srcWidth, offset, regionWidth, regionHeight, dst);
+                break;
+            case 3:
+                rotate270(src, srcWidth, offset, regionWidth, regionHeight, dst);
+                break;
+        }
+    }
+
+    // Source (x, y) goes to (h - 1 - y, x) of an output that is h pixels wide
+    private static void rotate90(byte[] src, int srcWidth, int offset, int w, int h, byte[] dst) {
+        for (int tileY = 0; tileY < h; tileY += TILE_SIZE) {
+            int endY = Math.min(tileY + TILE_SIZE, h);
+            for (int tileX = 0; tileX < w; tileX += TILE_SIZE) {
+                int endX = Math.min(tileX + TILE_SIZE, w);
+                for (int y = tileY; y < endY; y++) {
+                    int srcIndex = offset + y * srcWidth + tileX;
+                    int dstIndex = tileX * h + h - 1 - y;
+                    for (int x = tileX; x < endX; x++) {
+                        dst[dstIndex] = src[srcIndex++];
+                        dstIndex += h;
+                    }
+                }
+            }
+        }
+    }
+
+    // Source (x, y) goes to (w - 1 - x, h - 1 - y)
+    private static void rotate180(byte[] src, int srcWidth, int offset, int w, int h, byte[] dst) {
+        int dstIndex = w * h - 1;
+        for (int y = 0; y < h; y++) {
+            int srcIndex = offset + y * srcWidth;
+            for (int x = 0; x < w; x++) {
+                dst[dstIndex--] = src[srcIndex++];
+            }
+        }
+    }
+
+    // Source (x, y) goes to (y, w - 1 - x) of an output that is h pixels wide
+    private static void rotate270(byte[] src, int srcWidth, int offset, int w, int h, byte[] dst) {
+        for (int tileY = 0; tileY < h; tileY += TILE_SIZE) {
+            int endY = Math.min(tileY + TILE_SIZE, h);
+            for (int tileX = 0; tileX < w; tileX += TILE_SIZE) {
+                int endX = Math.min(tileX + TILE_SIZE, w);
+                for (int y = tileY; y < endY; y++) {
+                    int srcIndex = offset + y * srcWidth + tileX;
+                    int dstIndex = (w - 1 - tileX) * h + y;
+                    for (int x = tileX; x < endX; x++) {
+                        dst[dstIndex] = src[srcIndex++];
+                        dstIndex -= h;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package me.dm7.barcodescanner.core;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads shared by all scanner views of the process: one camera thread, which cameras are
+ * opened and released on and whose looper receives their callbacks, and a bounded pool of
+ * decode threads.
+ * <p>Views hold on to them by reference count. Decode threads that have nothing to do exit after
+ * the idle timeout, and once nothing references the runtime anymore the camera thread quits
+ * after the same timeout, so switching between scanner views, e.g. in a ViewPager, reuses the
+ * threads instead of starting new ones.</p>
+ */
+public final class ScannerRuntime {
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 10000;
+
+    private static ScannerRuntime sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private long mIdleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    private int mMaxDecodeThreads = getDefaultMaxDecodeThreads();
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+    private int mCameraReferences;
+    private ThreadPoolExecutor mDecodePool;
+    private int mDecodeReferences;
+
+    private final Runnable mIdleShutdown = new Runnable() {
+        @Override
+        public void run() {
+            shutdownIfIdle();
+        }
+    };
+
+    public static synchronized ScannerRuntime getInstance() {
+        if(sInstance == null) {
+            sInstance = new ScannerRuntime();
+        }
+        return sInstance;
+    }
+
+    private ScannerRuntime() {
+    }
+
+    /**
+     * Time after which idle decode threads exit and, once the runtime is not referenced anymore,
+     * the camera thread quits.
+     */
+    public synchronized void setIdleTimeout(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = Math.max(0, idleTimeoutMillis);
+        if(mDecodePool != null) {
+            mDecodePool.setKeepAliveTime(Math.max(1, mIdleTimeoutMillis), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Upper bound for the decode threads of all scanner views together */
+    public synchronized void setMaxDecodeThreads(int maxDecodeThreads) {
+        mMaxDecodeThreads = Math.max(1, maxDecodeThreads);
+        if(mDecodePool != null) {
+            if(mMaxDecodeThreads > mDecodePool.getMaximumPoolSize()) {
+                mDecodePool.setMaximumPoolSize(mMaxDecodeThreads);
+                mDecodePool.setCorePoolSize(mMaxDecodeThreads);
+            } else {
+                mDecodePool.setCorePoolSize(mMaxDecodeThreads);
+                mDecodePool.setMaximumPoolSize(mMaxDecodeThreads);
+            }
+        }
+    }
+
+    public synchronized int getMaxDecodeThreads() {
+        return mMaxDecodeThreads;
+    }
+
+    /**
+     * Returns a handler of the camera thread, starting the thread if needed. Every call has to be
+     * matched by {@link #releaseCameraHandler()} once all work posted to it has run.
+     */
+    public synchronized Handler acquireCameraHandler() {
+        if(mCameraThread == null) {
+            mCameraThread = new HandlerThread("CameraHandlerThread");
+            mCameraThread.start();
+            mCameraHandler = new Handler(mCameraThread.getLooper());
+        }
+        mCameraReferences++;
+        mMainHandler.removeCallbacks(mIdleShutdown);
+        return mCameraHandler;
+    }
+
+    public synchronized void releaseCameraHandler() {
+        if(mCameraReferences == 0) {
+            throw new IllegalStateException("Camera handler released more often than acquired");
+        }
+        mCameraReferences--;
+        scheduleIdleShutdown();
+    }
+
+    /**
+     * Returns the executor of the decode threads, creating it if needed. Every call has to be
+     * matched by {@link #releaseDecodeExecutor()}.
+     */
+    public synchronized Executor acquireDecodeExecutor() {
+        if(mDecodePool == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            mDecodePool = new ThreadPoolExecutor(mMaxDecodeThreads, mMaxDecodeThreads,
+                    Math.max(1, mIdleTimeoutMillis), TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            return new Thread(runnable, "DecodeThread-" + threadCount.incrementAndGet());
+                        }
+                    });
+            // Threads are only started when there is work and exit again when idle
+            mDecodePool.allowCoreThreadTimeOut(true);
+        }
+        mDecodeReferences++;
+        mMainHandler.removeCallbacks(mIdleShutdown);
+        return mDecodePool;
+    }
+
+    public synchronized void releaseDecodeExecutor() {
+        if(mDecodeReferences == 0) {
+            throw new IllegalStateException("Decode executor released more often than acquired");
+        }
+        mDecodeReferences--;
+        scheduleIdleShutdown();
+    }
+
+    private void scheduleIdleShutdown() {
+        if(mCameraReferences == 0 && mDecodeReferences == 0) {
+            mMainHandler.removeCallbacks(mIdleShutdown);
+            mMainHandler.postDelayed(mIdleShutdown, mIdleTimeoutMillis);
+        }
+    }
+
+    private synchronized void shutdownIfIdle() {
+        if(mCameraReferences > 0 || mDecodeReferences > 0) {
+            return;
+        }
+        // Everything that was posted by the last holder has run before it let go
+        if(mCameraThread != null) {
+            mCameraThread.quit();
+            mCameraThread = null;
+            mCameraHandler = null;
+        }
+        if(mDecodePool != null) {
+            mDecodePool.shutdown();
+            mDecodePool = null;
+        }
+    }
+
+    private static int getDefaultMaxDecodeThreads() {
+        // Leave a core for the camera and the UI
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(2, processors - 1);
+    }
+}
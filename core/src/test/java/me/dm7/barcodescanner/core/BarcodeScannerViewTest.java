@@ -0,0 +1,84 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.Context;
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class BarcodeScannerViewTest {
+    private Context mContext;
+    private BarcodeScannerView mScannerView;
+
+    private static class TestScannerView extends BarcodeScannerView {
+        TestScannerView(Context context) {
+            super(context);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mScannerView = new TestScannerView(mContext);
+    }
+
+    @Test
+    public void useCamera2_defaultsToCameraApi() {
+        Camera2SessionTest.addCamera(mContext, "0", CameraMetadata.LENS_FACING_BACK,
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
+        assertFalse(mScannerView.useCamera2(0));
+    }
+
+    @Test
+    public void useCamera2_whenRequested() {
+        mScannerView.setCameraBackend(BarcodeScannerView.CameraBackend.CAMERA2);
+        assertTrue(mScannerView.useCamera2(0));
+
+        mScannerView.setCameraBackend(null);
+        assertFalse(mScannerView.useCamera2(0));
+    }
+
+    @Test
+    public void useCamera2_autoFollowsHardwareLevel() {
+        Camera2SessionTest.addCamera(mContext, "0", CameraMetadata.LENS_FACING_BACK,
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED);
+        Camera2SessionTest.addCamera(mContext, "1", CameraMetadata.LENS_FACING_FRONT,
+                CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        mScannerView.setCameraBackend(BarcodeScannerView.CameraBackend.AUTO);
+
+        assertTrue(mScannerView.useCamera2(0));
+        assertFalse(mScannerView.useCamera2(1));
+    }
+
+    @Test
+    public void resumeLatency_measuredUntilFirstFrame() {
+        mScannerView.setupLayout(null);
+        mScannerView.onPreviewFrame(new byte[16], null);
+        assertEquals(-1, mScannerView.getLastResumeLatencyMillis(), 0);
+
+        mScannerView.resumeCameraPreview();
+        mScannerView.onPreviewFrame(new byte[16], null);
+        float latencyMillis = mScannerView.getLastResumeLatencyMillis();
+        assertTrue(latencyMillis >= 0);
+
+        // Only the first frame after a resume counts
+        mScannerView.onPreviewFrame(new byte[16], null);
+        assertEquals(latencyMillis, mScannerView.getLastResumeLatencyMillis(), 0);
+    }
+
+    @Test
+    @Config(sdk = 19)
+    public void useCamera2_neverBeforeLollipop() {
+        mScannerView.setCameraBackend(BarcodeScannerView.CameraBackend.CAMERA2);
+        assertFalse(mScannerView.useCamera2(0));
+    }
+}
@@ -0,0 +1,69 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.Context;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowCameraCharacteristics;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class Camera2SessionTest {
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void isSupported_fullHardwareLevel() {
+        addCamera(mContext, "0", CameraMetadata.LENS_FACING_BACK, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
+        assertTrue(Camera2Session.isSupported(mContext, 0));
+    }
+
+    @Test
+    public void isSupported_notForLegacyHardwareLevel() {
+        addCamera(mContext, "0", CameraMetadata.LENS_FACING_BACK, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        assertFalse(Camera2Session.isSupported(mContext, 0));
+    }
+
+    @Test
+    public void isSupported_notForMissingCamera() {
+        assertFalse(Camera2Session.isSupported(mContext, 0));
+        addCamera(mContext, "0", CameraMetadata.LENS_FACING_BACK, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
+        assertFalse(Camera2Session.isSupported(mContext, 1));
+    }
+
+    @Test
+    public void isSupported_defaultCameraIsTheBackFacingOne() {
+        addCamera(mContext, "0", CameraMetadata.LENS_FACING_FRONT, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY);
+        addCamera(mContext, "1", CameraMetadata.LENS_FACING_BACK, CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
+        assertTrue(Camera2Session.isSupported(mContext, -1));
+    }
+
+    @Test
+    @Config(sdk = 19)
+    public void isSupported_notBeforeLollipop() {
+        assertFalse(Camera2Session.isSupported(mContext, 0));
+    }
+
+    static void addCamera(Context context, String cameraId, int facing, int hardwareLevel) {
+        CameraCharacteristics characteristics = ShadowCameraCharacteristics.newCameraCharacteristics();
+        ShadowCameraCharacteristics shadowCharacteristics = shadowOf(characteristics);
+        shadowCharacteristics.set(CameraCharacteristics.LENS_FACING, facing);
+        shadowCharacteristics.set(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL, hardwareLevel);
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        shadowOf(manager).addCamera(cameraId, characteristics);
+    }
+}
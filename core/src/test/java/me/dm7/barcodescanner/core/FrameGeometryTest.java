@@ -0,0 +1,54 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class FrameGeometryTest {
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 54;
+
+    @Test
+    public void portrait90_swapsFrameDimensions() {
+        FrameGeometry geometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.NV21, 90,
+                Configuration.ORIENTATION_PORTRAIT).withFramingRect(new Rect(3, 7, 40, 60));
+
+        assertEquals(1, geometry.getFrameRotationCount());
+        assertTrue(geometry.isRotated());
+        assertEquals(HEIGHT, geometry.getFrameWidth());
+        assertEquals(WIDTH, geometry.getFrameHeight());
+        assertEquals(new Rect(7, HEIGHT - 40, 60, HEIGHT - 3), geometry.getPreviewFramingRect());
+    }
+
+    @Test
+    public void portrait180_isRotatedWithoutSwappingDimensions() {
+        FrameGeometry geometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.NV21, 180,
+                Configuration.ORIENTATION_PORTRAIT).withFramingRect(new Rect(3, 7, 40, 30));
+
+        // Upside down frames still have to be turned before decoding, even though their size stays
+        assertEquals(2, geometry.getFrameRotationCount());
+        assertFalse(geometry.isRotated());
+        assertEquals(WIDTH, geometry.getFrameWidth());
+        assertEquals(HEIGHT, geometry.getFrameHeight());
+        assertEquals(new Rect(WIDTH - 40, HEIGHT - 30, WIDTH - 3, HEIGHT - 7), geometry.getPreviewFramingRect());
+    }
+
+    @Test
+    public void landscape_isNeverRotated() {
+        FrameGeometry geometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.NV21, 180,
+                Configuration.ORIENTATION_LANDSCAPE).withFramingRect(new Rect(3, 7, 40, 30));
+
+        assertEquals(0, geometry.getFrameRotationCount());
+        assertFalse(geometry.isRotated());
+        assertEquals(new Rect(3, 7, 40, 30), geometry.getPreviewFramingRect());
+    }
+}
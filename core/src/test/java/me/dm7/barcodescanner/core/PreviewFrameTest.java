@@ -0,0 +1,93 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PreviewFrameTest {
+    private static final int WIDTH = 40;
+    private static final int HEIGHT = 30;
+
+    private final FrameGeometry mGeometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.YUV_420_888, 90,
+            Configuration.ORIENTATION_PORTRAIT);
+
+    @Test
+    public void getLuminance_byteArrayFrameReturnsItsData() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        PreviewFrame frame = new PreviewFrame(data, mGeometry);
+
+        assertSame(data, frame.getLuminance(null));
+        assertNull(frame.getBuffer());
+        assertEquals(WIDTH, frame.getRowStride());
+    }
+
+    @Test
+    public void getLuminance_dropsRowPadding() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        int rowStride = WIDTH + 24;
+        PreviewFrame frame = new PreviewFrame(paddedBuffer(data, rowStride), rowStride, mGeometry, 0, null);
+
+        assertNull(frame.getData());
+        assertArrayEquals(data, frame.getLuminance(null));
+    }
+
+    @Test
+    public void getLuminance_tightBuffer() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        PreviewFrame frame = new PreviewFrame(paddedBuffer(data, WIDTH), WIDTH, mGeometry, 0, null);
+
+        assertArrayEquals(data, frame.getLuminance(null));
+    }
+
+    @Test
+    public void getLuminance_reusesLargeEnoughArray() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        ByteBuffer buffer = paddedBuffer(data, WIDTH + 8);
+        PreviewFrame frame = new PreviewFrame(buffer, WIDTH + 8, mGeometry, 0, null);
+
+        byte[] reuse = new byte[WIDTH * HEIGHT];
+        assertSame(reuse, frame.getLuminance(reuse));
+        byte[] tooSmall = new byte[WIDTH * HEIGHT - 1];
+        assertNotSame(tooSmall, frame.getLuminance(tooSmall));
+        // The buffer is read through a duplicate, its position stays where it was
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void release_handsBufferBack() {
+        final AtomicInteger releases = new AtomicInteger();
+        PreviewFrame frame = new PreviewFrame(ByteBuffer.allocateDirect(WIDTH * HEIGHT), WIDTH, mGeometry, 0,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        releases.incrementAndGet();
+                    }
+                });
+        frame.release();
+        assertEquals(1, releases.get());
+
+        // Byte array frames have nothing to hand back
+        new PreviewFrame(new byte[WIDTH * HEIGHT], mGeometry).release();
+    }
+
+    private static ByteBuffer paddedBuffer(byte[] data, int rowStride) {
+        // Like the planes of an image, the last row is not padded
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * (HEIGHT - 1) + WIDTH);
+        for(int y = 0; y < HEIGHT; y++) {
+            buffer.position(y * rowStride);
+            buffer.put(data, y * WIDTH, WIDTH);
+        }
+        buffer.rewind();
+        return buffer;
+    }
+}
@@ -0,0 +1,92 @@
+package me.dm7.barcodescanner.core;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class ResultDispatcherTest {
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<Runnable> mExecutorTasks = new ArrayList<>();
+    private final ResultDispatcher mDispatcher = new ResultDispatcher();
+
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mExecutorTasks.add(command);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        ShadowLooper.pauseMainLooper();
+    }
+
+    @Test
+    public void withoutExecutor_everythingRunsOnMainThread() {
+        mDispatcher.dispatch(new TestDelivery("a", true));
+        mDispatcher.dispatch(new TestDelivery("b", false));
+        assertEquals(0, mEvents.size());
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals("[prepare a, deliver a, deliver b]", mEvents.toString());
+    }
+
+    @Test
+    public void deliveryWithoutPreparation_bypassesMainThread() {
+        mDispatcher.setExecutor(mExecutor);
+        mDispatcher.dispatch(new TestDelivery("a", false));
+        mDispatcher.dispatch(new TestDelivery("b", false));
+
+        // A single drain task for the whole burst
+        assertEquals(1, mExecutorTasks.size());
+        mExecutorTasks.remove(0).run();
+        assertEquals("[deliver a, deliver b]", mEvents.toString());
+    }
+
+    @Test
+    public void deliveryWithPreparation_isPreparedOnMainThreadFirst() {
+        mDispatcher.setExecutor(mExecutor);
+        mDispatcher.dispatch(new TestDelivery("a", true));
+        assertEquals(0, mExecutorTasks.size());
+
+        ShadowLooper.runUiThreadTasks();
+        assertEquals("[prepare a]", mEvents.toString());
+        assertEquals(1, mExecutorTasks.size());
+        mExecutorTasks.remove(0).run();
+        assertEquals("[prepare a, deliver a]", mEvents.toString());
+    }
+
+    private class TestDelivery extends ResultDispatcher.Delivery {
+        private final String mName;
+        private final boolean mNeedsPreparation;
+
+        TestDelivery(String name, boolean needsPreparation) {
+            mName = name;
+            mNeedsPreparation = needsPreparation;
+        }
+
+        @Override
+        protected boolean needsPreparation() {
+            return mNeedsPreparation;
+        }
+
+        @Override
+        protected void prepare() {
+            mEvents.add("prepare " + mName);
+        }
+
+        @Override
+        protected void deliver() {
+            mEvents.add("deliver " + mName);
+        }
+    }
+}
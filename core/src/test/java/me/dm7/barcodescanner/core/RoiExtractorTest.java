@@ -0,0 +1,109 @@
+package me.dm7.barcodescanner.core;
+
+import android.content.res.Configuration;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class RoiExtractorTest {
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 54;
+
+    @Test
+    public void extract_matchesCropOfRotatedFrame() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        for(int rotationCount = 0; rotationCount < 4; rotationCount++) {
+            FrameGeometry geometry = portraitGeometry(rotationCount);
+            RoiExtractor extractor = new RoiExtractor();
+            byte[] roi = extractor.extract(data, geometry);
+
+            assertEquals(geometry.getFramingRect().width(), extractor.getWidth());
+            assertEquals(geometry.getFramingRect().height(), extractor.getHeight());
+            assertArrayEquals("rotationCount " + rotationCount, expectedRoi(data, geometry, rotationCount), roi);
+        }
+    }
+
+    @Test
+    public void extract_turnsUpsideDownFrame() {
+        // At 180 degrees the frame keeps its size, but still has to be turned before decoding
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        FrameGeometry geometry = portraitGeometry(2);
+        byte[] roi = new RoiExtractor().extract(data, geometry);
+
+        Rect rect = geometry.getFramingRect();
+        assertArrayEquals(expectedRoi(data, geometry, 2), roi);
+        // Cropping the unrotated frame with the framing rect, as ZBar's setCrop would, reads the wrong pixels
+        assertFalse(Arrays.equals(RotationUtilsTest.crop(data, WIDTH, rect.left, rect.top, rect.width(), rect.height()),
+                roi));
+    }
+
+    @Test
+    public void extract_bufferWithRowPaddingMatchesArray() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        int rowStride = WIDTH + 13;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for(int y = 0; y < HEIGHT; y++) {
+            buffer.position(y * rowStride);
+            buffer.put(data, y * WIDTH, WIDTH);
+        }
+        buffer.rewind();
+
+        for(int rotationCount = 0; rotationCount < 4; rotationCount++) {
+            FrameGeometry geometry = portraitGeometry(rotationCount);
+            byte[] fromArray = new RoiExtractor().extract(data, geometry).clone();
+            byte[] fromBuffer = new RoiExtractor().extract(buffer, rowStride, geometry);
+            assertArrayEquals("rotationCount " + rotationCount, fromArray, fromBuffer);
+            assertEquals("buffer position", 0, buffer.position());
+        }
+    }
+
+    @Test
+    public void extract_clipsFramingRectToFrame() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        FrameGeometry geometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.NV21, 0,
+                Configuration.ORIENTATION_LANDSCAPE).withFramingRect(new Rect(-10, 40, 20, 80));
+        RoiExtractor extractor = new RoiExtractor();
+        byte[] roi = extractor.extract(data, geometry);
+
+        assertEquals(20, extractor.getWidth());
+        assertEquals(HEIGHT - 40, extractor.getHeight());
+        assertArrayEquals(RotationUtilsTest.crop(data, WIDTH, 0, 40, 20, HEIGHT - 40), roi);
+    }
+
+    @Test
+    public void extract_withoutFramingRectReturnsNull() {
+        byte[] data = RotationUtilsTest.randomFrame(WIDTH, HEIGHT);
+        FrameGeometry geometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.NV21, 90,
+                Configuration.ORIENTATION_PORTRAIT);
+        assertNull(new RoiExtractor().extract(data, geometry));
+    }
+
+    // Frames are only rotated in portrait, with the framing rect in rotated coordinates
+    private static FrameGeometry portraitGeometry(int rotationCount) {
+        FrameGeometry geometry = new FrameGeometry(WIDTH, HEIGHT, ImageFormat.NV21, rotationCount * 90,
+                Configuration.ORIENTATION_PORTRAIT);
+        int frameWidth = geometry.getFrameWidth();
+        int frameHeight = geometry.getFrameHeight();
+        // Off center, so a wrong mapping back into the sensor frame can't go unnoticed
+        return geometry.withFramingRect(new Rect(3, 7, frameWidth - 11, frameHeight - 2));
+    }
+
+    private static byte[] expectedRoi(byte[] data, FrameGeometry geometry, int rotationCount) {
+        byte[] rotated = RotationUtilsTest.rotateFullFrame(data, WIDTH, HEIGHT, rotationCount);
+        int frameWidth = (rotationCount & 1) == 0 ? WIDTH : HEIGHT;
+        Rect rect = geometry.getFramingRect();
+        return RotationUtilsTest.crop(rotated, frameWidth, rect.left, rect.top, rect.width(), rect.height());
+    }
+}
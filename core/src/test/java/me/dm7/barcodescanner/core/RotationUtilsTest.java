@@ -0,0 +1,96 @@
+package me.dm7.barcodescanner.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class RotationUtilsTest {
+    // Larger than a tile and not a multiple of it, so partial tiles are covered
+    private static final int WIDTH = 83;
+    private static final int HEIGHT = 47;
+
+    @Test
+    public void rotate_matchesFullFrameLoop() {
+        byte[] data = randomFrame(WIDTH, HEIGHT);
+        for(int rotationCount = 0; rotationCount < 4; rotationCount++) {
+            byte[] rotated = new byte[data.length];
+            RotationUtils.rotate(data, WIDTH, HEIGHT, rotationCount, rotated);
+            assertArrayEquals("rotationCount " + rotationCount,
+                    rotateFullFrame(data, WIDTH, HEIGHT, rotationCount), rotated);
+        }
+    }
+
+    @Test
+    public void rotate_treatsRotationCountModuloFour() {
+        byte[] data = randomFrame(WIDTH, HEIGHT);
+        byte[] expected = new byte[data.length];
+        byte[] rotated = new byte[data.length];
+        RotationUtils.rotate(data, WIDTH, HEIGHT, 1, expected);
+        RotationUtils.rotate(data, WIDTH, HEIGHT, 5, rotated);
+        assertArrayEquals(expected, rotated);
+    }
+
+    @Test
+    public void rotateRegion_matchesCropOfRotatedFrame() {
+        byte[] data = randomFrame(WIDTH, HEIGHT);
+        int left = 5;
+        int top = 9;
+        int regionWidth = 61;
+        int regionHeight = 33;
+        for(int rotationCount = 0; rotationCount < 4; rotationCount++) {
+            byte[] region = new byte[regionWidth * regionHeight];
+            RotationUtils.rotateRegion(data, WIDTH, left, top, regionWidth, regionHeight, rotationCount, region);
+
+            byte[] expected = rotateFullFrame(crop(data, WIDTH, left, top, regionWidth, regionHeight),
+                    regionWidth, regionHeight, rotationCount);
+            assertArrayEquals("rotationCount " + rotationCount, expected, region);
+        }
+    }
+
+    @Test
+    public void rotate_singlePixelRowAndColumn() {
+        byte[] row = new byte[] { 1, 2, 3 };
+        byte[] rotated = new byte[3];
+        RotationUtils.rotate(row, 3, 1, 1, rotated);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, rotated);
+        RotationUtils.rotate(row, 3, 1, 3, rotated);
+        assertArrayEquals(new byte[] { 3, 2, 1 }, rotated);
+        RotationUtils.rotate(row, 3, 1, 2, rotated);
+        assertArrayEquals(new byte[] { 3, 2, 1 }, rotated);
+    }
+
+    static byte[] randomFrame(int width, int height) {
+        byte[] data = new byte[width * height];
+        new Random(width * 31 + height).nextBytes(data);
+        return data;
+    }
+
+    static byte[] crop(byte[] data, int dataWidth, int left, int top, int width, int height) {
+        byte[] cropped = new byte[width * height];
+        for(int y = 0; y < height; y++) {
+            System.arraycopy(data, (top + y) * dataWidth + left, cropped, y * width, width);
+        }
+        return cropped;
+    }
+
+    /**
+     * The full frame rotation loop the scanner views used before {@link RotationUtils}: one
+     * quarter turn per pass, each into a newly allocated frame.
+     */
+    static byte[] rotateFullFrame(byte[] data, int width, int height, int rotationCount) {
+        for(int i = 0; i < rotationCount; i++) {
+            byte[] rotatedData = new byte[data.length];
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++)
+                    rotatedData[x * height + height - y - 1] = data[x + y * width];
+            }
+            data = rotatedData;
+            int tmp = width;
+            width = height;
+            height = tmp;
+        }
+        return data;
+    }
+}
@@ -1,8 +1,11 @@
 package me.dm7.barcodescanner.zbar;
 
+import android.graphics.Rect;
+
 public class Result {
     private String mContents;
     private BarcodeFormat mBarcodeFormat;
+    private Rect mBounds;
 
     public void setContents(String contents) {
         mContents = contents;
@@ -12,6 +15,11 @@ public class Result {
         mBarcodeFormat = format;
     }
 
+    /** Location of the code, relative to the framing rect */
+    public void setBounds(Rect bounds) {
+        mBounds = bounds;
+    }
+
     public BarcodeFormat getBarcodeFormat() {
         return mBarcodeFormat;
     }
@@ -19,4 +27,8 @@ public class Result {
     public String getContents() {
         return mContents;
     }
-}
\ No newline at end of file
+
+    public Rect getBounds() {
+        return mBounds;
+    }
+}
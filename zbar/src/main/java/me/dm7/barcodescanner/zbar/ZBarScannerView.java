@@ -1,14 +1,9 @@
 package me.dm7.barcodescanner.zbar;
 
 import android.content.Context;
-import android.content.res.Configuration;
 import android.graphics.Rect;
-import android.hardware.Camera;
-import android.os.Handler;
-import android.os.Looper;
 import android.text.TextUtils;
 import android.util.AttributeSet;
-import android.util.Log;
 
 import net.sourceforge.zbar.Config;
 import net.sourceforge.zbar.Image;
@@ -17,11 +12,16 @@ import net.sourceforge.zbar.Symbol;
 import net.sourceforge.zbar.SymbolSet;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 import me.dm7.barcodescanner.core.BarcodeScannerView;
-import me.dm7.barcodescanner.core.DisplayUtils;
+import me.dm7.barcodescanner.core.FrameDecoder;
+import me.dm7.barcodescanner.core.FrameGeometry;
+import me.dm7.barcodescanner.core.PreviewFrame;
+import me.dm7.barcodescanner.core.ResultDispatcher;
+import me.dm7.barcodescanner.core.RoiExtractor;
 
 public class ZBarScannerView extends BarcodeScannerView {
     private static final String TAG = "ZBarScannerView";
@@ -30,13 +30,19 @@ public class ZBarScannerView extends BarcodeScannerView {
         public void handleResult(Result rawResult);
     }
 
+    /** Receives every code that was found in a frame */
+    public interface MultipleResultHandler {
+        public void handleResults(List<Result> rawResults);
+    }
+
     static {
         System.loadLibrary("iconv");
     }
 
-    private ImageScanner mScanner;
+    private volatile List<BarcodeFormat> mScannerFormats;
     private List<BarcodeFormat> mFormats;
-    private ResultHandler mResultHandler;
+    private volatile ResultHandler mResultHandler;
+    private volatile MultipleResultHandler mMultipleResultHandler;
 
     public ZBarScannerView(Context context) {
         super(context);
@@ -57,6 +63,14 @@ public class ZBarScannerView extends BarcodeScannerView {
         mResultHandler = resultHandler;
     }
 
+    /**
+     * Switches to multi result mode, in which all symbols inside the framing rect are reported
+     * from a single frame. Takes precedence over the {@link ResultHandler}, pass null to go back.
+     */
+    public void setMultipleResultHandler(MultipleResultHandler multipleResultHandler) {
+        mMultipleResultHandler = multipleResultHandler;
+    }
+
     public Collection<BarcodeFormat> getFormats() {
         if(mFormats == null) {
             return BarcodeFormat.ALL_FORMATS;
@@ -64,94 +78,215 @@ public class ZBarScannerView extends BarcodeScannerView {
         return mFormats;
     }
 
+    @Override
+    protected Collection<String> getFormatNames() {
+        List<String> names = new ArrayList<>();
+        for (BarcodeFormat format : getFormats()) {
+            names.add(format.getName());
+        }
+        return names;
+    }
+
     public void setupScanner() {
-        mScanner = new ImageScanner();
-        mScanner.setConfig(0, Config.X_DENSITY, 3);
-        mScanner.setConfig(0, Config.Y_DENSITY, 3);
+        // Every decoder thread owns a scanner and rebuilds it with its next frame
+        mScannerFormats = new ArrayList<>(getFormats());
+    }
 
-        mScanner.setConfig(Symbol.NONE, Config.ENABLE, 0);
-        for(BarcodeFormat format : getFormats()) {
-            mScanner.setConfig(format.getId(), Config.ENABLE, 1);
+    private static ImageScanner createScanner(List<BarcodeFormat> formats) {
+        ImageScanner scanner = new ImageScanner();
+        scanner.setConfig(0, Config.X_DENSITY, 3);
+        scanner.setConfig(0, Config.Y_DENSITY, 3);
+
+        scanner.setConfig(Symbol.NONE, Config.ENABLE, 0);
+        for(BarcodeFormat format : formats) {
+            scanner.setConfig(format.getId(), Config.ENABLE, 1);
         }
+        return scanner;
     }
 
     @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        if(mResultHandler == null) {
-            return;
-        }
+    protected FrameDecoder createFrameDecoder() {
+        return new ZBarFrameDecoder();
+    }
+
+    private class ZBarFrameDecoder implements FrameDecoder {
+        private final RoiExtractor mRoiExtractor = new RoiExtractor();
+        private ImageScanner mScanner;
+        private List<BarcodeFormat> mConfiguredFormats;
 
-        try {
-            Camera.Parameters parameters = camera.getParameters();
-            Camera.Size size = parameters.getPreviewSize();
-            int width = size.width;
-            int height = size.height;
-
-            if (DisplayUtils.getScreenOrientation(getContext()) == Configuration.ORIENTATION_PORTRAIT) {
-                int rotationCount = getRotationCount();
-                if (rotationCount == 1 || rotationCount == 3) {
-                    int tmp = width;
-                    width = height;
-                    height = tmp;
+        @Override
+        public boolean decode(PreviewFrame frame) {
+            if(mResultHandler == null && mMultipleResultHandler == null) {
+                return false;
+            }
+
+            FrameGeometry geometry = frame.getGeometry();
+            Image barcode;
+            // Symbol bounds are reported in image coordinates, results are relative to the framing rect
+            int offsetX = 0;
+            int offsetY = 0;
+            if (frame.getBuffer() != null || geometry.getFrameRotationCount() != 0) {
+                // Only copy and rotate the pixels inside the framing rect. ZBar only takes byte
+                // arrays, so of a buffer frame just the rows of the framing rect are copied.
+                byte[] roi = frame.getBuffer() != null
+                        ? mRoiExtractor.extract(frame.getBuffer(), frame.getRowStride(), geometry)
+                        : mRoiExtractor.extract(frame.getData(), geometry);
+                if (roi == null) {
+                    return false;
                 }
-                data = getRotatedData(data, camera);
+                barcode = new Image(mRoiExtractor.getWidth(), mRoiExtractor.getHeight(), "Y800");
+                barcode.setData(roi);
+            } else {
+                Rect rect = geometry.getFramingRect();
+                barcode = new Image(geometry.getFrameWidth(), geometry.getFrameHeight(), "Y800");
+                barcode.setData(frame.getData());
+                barcode.setCrop(rect.left, rect.top, rect.width(), rect.height());
+                offsetX = rect.left;
+                offsetY = rect.top;
             }
 
-            Rect rect = getFramingRectInPreview(width, height);
-            Image barcode = new Image(width, height, "Y800");
-            barcode.setData(data);
-            barcode.setCrop(rect.left, rect.top, rect.width(), rect.height());
+            if (frame.shouldAbort()) {
+                return false;
+            }
+
+            List<BarcodeFormat> formats = mScannerFormats;
+            if (formats != mConfiguredFormats) {
+                if (mScanner != null) {
+                    mScanner.destroy();
+                }
+                mScanner = createScanner(formats);
+                mConfiguredFormats = formats;
+            }
 
             int result = mScanner.scanImage(barcode);
 
-            if (result != 0) {
-                SymbolSet syms = mScanner.getResults();
-                final Result rawResult = new Result();
-                for (Symbol sym : syms) {
-                    // In order to retreive QR codes containing null bytes we need to
-                    // use getDataBytes() rather than getData() which uses C strings.
-                    // Weirdly ZBar transforms all data to UTF-8, even the data returned
-                    // by getDataBytes() so we have to decode it as UTF-8.
-                    String symData;
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
-                        symData = new String(sym.getDataBytes(), StandardCharsets.UTF_8);
-                    } else {
-                        symData = sym.getData();
-                    }
-                    if (!TextUtils.isEmpty(symData)) {
-                        rawResult.setContents(symData);
-                        rawResult.setBarcodeFormat(BarcodeFormat.getFormatById(sym.getType()));
+            if (result == 0 || frame.isCancelled()) {
+                return false;
+            }
+
+            boolean multiple = mMultipleResultHandler != null;
+            SymbolSet syms = mScanner.getResults();
+            final List<Result> results = new ArrayList<>();
+            for (Symbol sym : syms) {
+                // In order to retreive QR codes containing null bytes we need to
+                // use getDataBytes() rather than getData() which uses C strings.
+                // Weirdly ZBar transforms all data to UTF-8, even the data returned
+                // by getDataBytes() so we have to decode it as UTF-8.
+                String symData;
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
+                    symData = new String(sym.getDataBytes(), StandardCharsets.UTF_8);
+                } else {
+                    symData = sym.getData();
+                }
+                if (!TextUtils.isEmpty(symData)) {
+                    results.add(buildResult(sym, symData, offsetX, offsetY));
+                    if (!multiple) {
                         break;
                     }
                 }
+            }
+
+            if (multiple) {
+                return postResults(results);
+            }
+
+            final Result rawResult = results.isEmpty() ? new Result() : results.get(0);
+            if (isDuplicateResult(rawResult.getBarcodeFormat(), rawResult.getContents())) {
+                return true;
+            }
+
+            final boolean stopPreview = !isContinuousScanning();
+            postResult(new ResultDispatcher.Delivery() {
+                // Claimed on the main thread when the preview stops, read when delivering otherwise
+                private ResultHandler mHandler;
+
+                @Override
+                protected boolean needsPreparation() {
+                    return stopPreview;
+                }
+
+                @Override
+                protected void prepare() {
+                    mHandler = mResultHandler;
+                    // Stopping the preview can take a little long.
+                    // So we want to set result handler to null to discard subsequent calls to
+                    // onPreviewFrame.
+                    mResultHandler = null;
+                    stopCameraPreview();
+                }
 
-                Handler handler = new Handler(Looper.getMainLooper());
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        // Stopping the preview can take a little long.
-                        // So we want to set result handler to null to discard subsequent calls to
-                        // onPreviewFrame.
-                        ResultHandler tmpResultHandler = mResultHandler;
-                        mResultHandler = null;
-                        
-                        stopCameraPreview();
-                        if (tmpResultHandler != null) {
-                            tmpResultHandler.handleResult(rawResult);
-                        }
+                @Override
+                protected void deliver() {
+                    ResultHandler handler = stopPreview ? mHandler : mResultHandler;
+                    if (handler != null) {
+                        handler.handleResult(rawResult);
                     }
-                });
-            } else {
-                camera.setOneShotPreviewCallback(this);
+                }
+            });
+            return true;
+        }
+
+        private boolean postResults(List<Result> rawResults) {
+            final List<Result> results = new ArrayList<>(rawResults.size());
+            for (Result rawResult : rawResults) {
+                if (!isDuplicateResult(rawResult.getBarcodeFormat(), rawResult.getContents())) {
+                    results.add(rawResult);
+                }
+            }
+            if (results.isEmpty()) {
+                return !rawResults.isEmpty();
             }
-        } catch(RuntimeException e) {
-            // TODO: Terrible hack. It is possible that this method is invoked after camera is released.
-            Log.e(TAG, e.toString(), e);
+
+            final boolean stopPreview = !isContinuousScanning();
+            postResult(new ResultDispatcher.Delivery() {
+                // Claimed on the main thread when the preview stops, read when delivering otherwise
+                private MultipleResultHandler mHandler;
+
+                @Override
+                protected boolean needsPreparation() {
+                    return stopPreview;
+                }
+
+                @Override
+                protected void prepare() {
+                    mHandler = mMultipleResultHandler;
+                    mMultipleResultHandler = null;
+                    stopCameraPreview();
+                }
+
+                @Override
+                protected void deliver() {
+                    MultipleResultHandler handler = stopPreview ? mHandler : mMultipleResultHandler;
+                    if (handler != null) {
+                        handler.handleResults(results);
+                    }
+                }
+            });
+            return true;
         }
     }
 
+    private static Result buildResult(Symbol sym, String symData, int offsetX, int offsetY) {
+        Result rawResult = new Result();
+        rawResult.setContents(symData);
+        rawResult.setBarcodeFormat(BarcodeFormat.getFormatById(sym.getType()));
+        // x, y, width and height of the axis aligned bounding box
+        int[] bounds = sym.getBounds();
+        if (bounds != null && bounds.length == 4) {
+            int left = bounds[0] - offsetX;
+            int top = bounds[1] - offsetY;
+            rawResult.setBounds(new Rect(left, top, left + bounds[2], top + bounds[3]));
+        }
+        return rawResult;
+    }
+
     public void resumeCameraPreview(ResultHandler resultHandler) {
         mResultHandler = resultHandler;
         super.resumeCameraPreview();
     }
+
+    public void resumeCameraPreviewMultiple(MultipleResultHandler multipleResultHandler) {
+        mMultipleResultHandler = multipleResultHandler;
+        super.resumeCameraPreview();
+    }
 }
@@ -0,0 +1,142 @@
+package me.dm7.barcodescanner.zxing;
+
+import com.google.zxing.LuminanceSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Luminance source that reads an 8 bit luminance plane straight out of a ByteBuffer, e.g. the
+ * Y plane of a Camera2 image, a memory mapped recording or a native buffer. Rows may be padded
+ * to rowStride bytes and neighbouring pixels pixelStride bytes apart, so the plane never has to
+ * be packed into a byte array first.
+ * <p>Like {@link RotatedYUVLuminanceSource}, the plane is read as if it had been rotated clockwise
+ * by rotationCount * 90 degrees, and the crop rect (left, top, width, height) is expressed in
+ * rotated coordinates.</p>
+ * <p>The buffer is not copied, so it must stay valid for as long as the source is used.</p>
+ */
+public final class ByteBufferLuminanceSource extends LuminanceSource {
+    private final ByteBuffer mData;
+    private final int mDataWidth;
+    private final int mDataHeight;
+    private final int mRowStride;
+    private final int mPixelStride;
+    private final int mRotationCount;
+    private final int mLeft;
+    private final int mTop;
+
+    // Index of the first pixel of the crop in the buffer, and the distance in bytes between
+    // horizontally and vertically neighbouring pixels of the rotated plane
+    private final int mOrigin;
+    private final int mStepX;
+    private final int mStepY;
+
+    public ByteBufferLuminanceSource(ByteBuffer data, int dataWidth, int dataHeight, int rowStride, int pixelStride,
+                                     int rotationCount, int left, int top, int width, int height) {
+        super(width, height);
+
+        int rotation = rotationCount & 3;
+        int frameWidth = (rotation & 1) == 0 ? dataWidth : dataHeight;
+        int frameHeight = (rotation & 1) == 0 ? dataHeight : dataWidth;
+        if (left < 0 || top < 0 || left + width > frameWidth || top + height > frameHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+        if (pixelStride < 1 || rowStride < (dataWidth - 1) * pixelStride + 1
+                || data.limit() < (dataHeight - 1) * rowStride + (dataWidth - 1) * pixelStride + 1) {
+            throw new IllegalArgumentException("Strides do not fit within the buffer.");
+        }
+
+        // Keeps the position of the caller's buffer untouched
+        mData = data.duplicate();
+        mDataWidth = dataWidth;
+        mDataHeight = dataHeight;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+        mRotationCount = rotation;
+        mLeft = left;
+        mTop = top;
+
+        switch (rotation) {
+            case 1: // frame (x, y) is plane (y, dataHeight - 1 - x)
+                mOrigin = (dataHeight - 1 - left) * rowStride + top * pixelStride;
+                mStepX = -rowStride;
+                mStepY = pixelStride;
+                break;
+            case 2: // frame (x, y) is plane (dataWidth - 1 - x, dataHeight - 1 - y)
+                mOrigin = (dataHeight - 1 - top) * rowStride + (dataWidth - 1 - left) * pixelStride;
+                mStepX = -pixelStride;
+                mStepY = -rowStride;
+                break;
+            case 3: // frame (x, y) is plane (dataWidth - 1 - y, x)
+                mOrigin = left * rowStride + (dataWidth - 1 - top) * pixelStride;
+                mStepX = rowStride;
+                mStepY = -pixelStride;
+                break;
+            default:
+                mOrigin = top * rowStride + left * pixelStride;
+                mStepX = pixelStride;
+                mStepY = rowStride;
+                break;
+        }
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        readRow(mOrigin + y * mStepY, row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        byte[] matrix = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            readRow(mOrigin + y * mStepY, matrix, y * width, width);
+        }
+        return matrix;
+    }
+
+    private void readRow(int index, byte[] target, int offset, int width) {
+        if (mStepX == 1) {
+            mData.position(index);
+            mData.get(target, offset, width);
+        } else {
+            for (int x = 0; x < width; x++) {
+                target[offset + x] = mData.get(index);
+                index += mStepX;
+            }
+        }
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new ByteBufferLuminanceSource(mData, mDataWidth, mDataHeight, mRowStride, mPixelStride,
+                mRotationCount, mLeft + left, mTop + top, width, height);
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        // Turning the frame counter clockwise moves (x, y) to (y, frameWidth - 1 - x)
+        int frameWidth = (mRotationCount & 1) == 0 ? mDataWidth : mDataHeight;
+        int width = getWidth();
+        return new ByteBufferLuminanceSource(mData, mDataWidth, mDataHeight, mRowStride, mPixelStride,
+                mRotationCount + 3, mTop, frameWidth - mLeft - width, getHeight(), width);
+    }
+}
@@ -0,0 +1,140 @@
+package me.dm7.barcodescanner.zxing;
+
+import com.google.zxing.LuminanceSource;
+
+import me.dm7.barcodescanner.core.RotationUtils;
+
+/**
+ * Luminance source that reads an unrotated YUV preview frame as if it had been rotated clockwise
+ * by rotationCount * 90 degrees. Rows are remapped on demand, so the frame itself is never copied.
+ * <p>The crop rect (left, top, width, height) is expressed in rotated frame coordinates, just
+ * like the framing rect of {@link me.dm7.barcodescanner.core.FrameGeometry}.</p>
+ */
+public final class RotatedYUVLuminanceSource extends LuminanceSource {
+    private final byte[] mYuvData;
+    private final int mDataWidth;
+    private final int mDataHeight;
+    private final int mRotationCount;
+    private final int mLeft;
+    private final int mTop;
+
+    // Index of the first pixel of the crop in yuvData, and the distance between
+    // horizontally and vertically neighbouring pixels of the rotated frame
+    private final int mOrigin;
+    private final int mStepX;
+    private final int mStepY;
+
+    public RotatedYUVLuminanceSource(byte[] yuvData, int dataWidth, int dataHeight, int rotationCount,
+                                     int left, int top, int width, int height) {
+        super(width, height);
+
+        int rotation = rotationCount & 3;
+        int frameWidth = (rotation & 1) == 0 ? dataWidth : dataHeight;
+        int frameHeight = (rotation & 1) == 0 ? dataHeight : dataWidth;
+        if (left < 0 || top < 0 || left + width > frameWidth || top + height > frameHeight) {
+            throw new IllegalArgumentException("Crop rectangle does not fit within image data.");
+        }
+
+        mYuvData = yuvData;
+        mDataWidth = dataWidth;
+        mDataHeight = dataHeight;
+        mRotationCount = rotation;
+        mLeft = left;
+        mTop = top;
+
+        switch (rotation) {
+            case 1: // frame (x, y) is sensor (y, dataHeight - 1 - x)
+                mOrigin = (dataHeight - 1 - left) * dataWidth + top;
+                mStepX = -dataWidth;
+                mStepY = 1;
+                break;
+            case 2: // frame (x, y) is sensor (dataWidth - 1 - x, dataHeight - 1 - y)
+                mOrigin = (dataHeight - 1 - top) * dataWidth + dataWidth - 1 - left;
+                mStepX = -1;
+                mStepY = -dataWidth;
+                break;
+            case 3: // frame (x, y) is sensor (dataWidth - 1 - y, x)
+                mOrigin = left * dataWidth + dataWidth - 1 - top;
+                mStepX = dataWidth;
+                mStepY = -1;
+                break;
+            default:
+                mOrigin = top * dataWidth + left;
+                mStepX = 1;
+                mStepY = dataWidth;
+                break;
+        }
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        if (y < 0 || y >= getHeight()) {
+            throw new IllegalArgumentException("Requested row is outside the image: " + y);
+        }
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        int index = mOrigin + y * mStepY;
+        if (mStepX == 1) {
+            System.arraycopy(mYuvData, index, row, 0, width);
+        } else {
+            for (int x = 0; x < width; x++) {
+                row[x] = mYuvData[index];
+                index += mStepX;
+            }
+        }
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        int width = getWidth();
+        int height = getHeight();
+        byte[] matrix = new byte[width * height];
+        int right = mLeft + width;
+        int bottom = mTop + height;
+
+        // Map the crop back into sensor coordinates and let the tiled kernels do the work
+        switch (mRotationCount) {
+            case 1:
+                RotationUtils.rotateRegion(mYuvData, mDataWidth, mTop, mDataHeight - right, height, width, 1, matrix);
+                break;
+            case 2:
+                RotationUtils.rotateRegion(mYuvData, mDataWidth, mDataWidth - right, mDataHeight - bottom, width, height, 2, matrix);
+                break;
+            case 3:
+                RotationUtils.rotateRegion(mYuvData, mDataWidth, mDataWidth - bottom, mLeft, height, width, 3, matrix);
+                break;
+            default:
+                RotationUtils.rotateRegion(mYuvData, mDataWidth, mLeft, mTop, width, height, 0, matrix);
+                break;
+        }
+        return matrix;
+    }
+
+    @Override
+    public boolean isCropSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource crop(int left, int top, int width, int height) {
+        return new RotatedYUVLuminanceSource(mYuvData, mDataWidth, mDataHeight, mRotationCount,
+                mLeft + left, mTop + top, width, height);
+    }
+
+    @Override
+    public boolean isRotateSupported() {
+        return true;
+    }
+
+    @Override
+    public LuminanceSource rotateCounterClockwise() {
+        // Turning the frame counter clockwise moves (x, y) to (y, frameWidth - 1 - x)
+        int frameWidth = (mRotationCount & 1) == 0 ? mDataWidth : mDataHeight;
+        int width = getWidth();
+        return new RotatedYUVLuminanceSource(mYuvData, mDataWidth, mDataHeight, mRotationCount + 3,
+                mTop, frameWidth - mLeft - width, getHeight(), width);
+    }
+}
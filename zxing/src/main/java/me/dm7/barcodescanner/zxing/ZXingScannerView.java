@@ -1,13 +1,8 @@
 package me.dm7.barcodescanner.zxing;
 
 import android.content.Context;
-import android.content.res.Configuration;
 import android.graphics.Rect;
-import android.hardware.Camera;
-import android.os.Handler;
-import android.os.Looper;
 import android.util.AttributeSet;
-import android.util.Log;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.BinaryBitmap;
@@ -16,9 +11,11 @@ import com.google.zxing.LuminanceSource;
 import com.google.zxing.MultiFormatReader;
 import com.google.zxing.NotFoundException;
 import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.Reader;
 import com.google.zxing.ReaderException;
 import com.google.zxing.Result;
 import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
 
 import java.util.ArrayList;
 import java.util.Collection;
@@ -27,7 +24,10 @@ import java.util.List;
 import java.util.Map;
 
 import me.dm7.barcodescanner.core.BarcodeScannerView;
-import me.dm7.barcodescanner.core.DisplayUtils;
+import me.dm7.barcodescanner.core.FrameDecoder;
+import me.dm7.barcodescanner.core.FrameGeometry;
+import me.dm7.barcodescanner.core.PreviewFrame;
+import me.dm7.barcodescanner.core.ResultDispatcher;
 
 public class ZXingScannerView extends BarcodeScannerView {
     private static final String TAG = "ZXingScannerView";
@@ -36,10 +36,19 @@ public class ZXingScannerView extends BarcodeScannerView {
         void handleResult(Result rawResult);
     }
 
-    private MultiFormatReader mMultiFormatReader;
+    /**
+     * Receives every code that was found in a frame. The result points are relative to the
+     * framing rect.
+     */
+    public interface MultipleResultHandler {
+        void handleResults(List<Result> rawResults);
+    }
+
+    private volatile Map<DecodeHintType,Object> mHints;
     public static final List<BarcodeFormat> ALL_FORMATS = new ArrayList<>();
     private List<BarcodeFormat> mFormats;
-    private ResultHandler mResultHandler;
+    private volatile ResultHandler mResultHandler;
+    private volatile MultipleResultHandler mMultipleResultHandler;
 
     static {
         ALL_FORMATS.add(BarcodeFormat.AZTEC);
@@ -80,6 +89,14 @@ public class ZXingScannerView extends BarcodeScannerView {
         mResultHandler = resultHandler;
     }
 
+    /**
+     * Switches to multi result mode, in which all codes inside the framing rect are decoded from
+     * a single frame. Takes precedence over the {@link ResultHandler}, pass null to go back.
+     */
+    public void setMultipleResultHandler(MultipleResultHandler multipleResultHandler) {
+        mMultipleResultHandler = multipleResultHandler;
+    }
+
     public Collection<BarcodeFormat> getFormats() {
         if(mFormats == null) {
             return ALL_FORMATS;
@@ -87,90 +104,211 @@ public class ZXingScannerView extends BarcodeScannerView {
         return mFormats;
     }
 
+    @Override
+    protected Collection<String> getFormatNames() {
+        List<String> names = new ArrayList<>();
+        for (BarcodeFormat format : getFormats()) {
+            names.add(format.name());
+        }
+        return names;
+    }
+
     private void initMultiFormatReader() {
+        // Every decoder thread owns a reader and picks up the new hints with its next frame
         Map<DecodeHintType,Object> hints = new EnumMap<>(DecodeHintType.class);
         hints.put(DecodeHintType.POSSIBLE_FORMATS, getFormats());
-        mMultiFormatReader = new MultiFormatReader();
-        mMultiFormatReader.setHints(hints);
+        mHints = hints;
     }
 
     @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        if(mResultHandler == null) {
-            return;
-        }
-        
-        try {
-            Camera.Parameters parameters = camera.getParameters();
-            Camera.Size size = parameters.getPreviewSize();
-            int width = size.width;
-            int height = size.height;
-
-            if (DisplayUtils.getScreenOrientation(getContext()) == Configuration.ORIENTATION_PORTRAIT) {
-                int rotationCount = getRotationCount();
-                if (rotationCount == 1 || rotationCount == 3) {
-                    int tmp = width;
-                    width = height;
-                    height = tmp;
-                }
-                data = getRotatedData(data, camera);
+    protected FrameDecoder createFrameDecoder() {
+        return new ZXingFrameDecoder();
+    }
+
+    private class ZXingFrameDecoder implements FrameDecoder {
+        private final MultiFormatReader mMultiFormatReader = new MultiFormatReader();
+        // Searches the sub regions around every code found, reusing the reader state of this decoder
+        private final GenericMultipleBarcodeReader mMultipleReader = new GenericMultipleBarcodeReader(new Reader() {
+            @Override
+            public Result decode(BinaryBitmap image) throws NotFoundException {
+                return mMultiFormatReader.decodeWithState(image);
+            }
+
+            @Override
+            public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+                return mMultiFormatReader.decodeWithState(image);
+            }
+
+            @Override
+            public void reset() {
+                mMultiFormatReader.reset();
+            }
+        });
+        private Map<DecodeHintType,Object> mReaderHints;
+
+        @Override
+        public boolean decode(PreviewFrame frame) {
+            if(mResultHandler == null && mMultipleResultHandler == null) {
+                return false;
+            }
+
+            Map<DecodeHintType,Object> hints = mHints;
+            if(hints != mReaderHints) {
+                mMultiFormatReader.setHints(hints);
+                mReaderHints = hints;
             }
 
+            FrameGeometry geometry = frame.getGeometry();
+            LuminanceSource source;
+            if (frame.getBuffer() != null) {
+                // Read the plane where it is, padding and rotation included
+                source = buildBufferLuminanceSource(frame, geometry);
+            } else if (geometry.getFrameRotationCount() != 0) {
+                // Read the sensor buffer through rotated coordinates instead of rotating it
+                source = buildRotatedLuminanceSource(frame.getData(), geometry);
+            } else {
+                source = buildLuminanceSource(frame.getData(), geometry.getFrameWidth(), geometry.getFrameHeight(),
+                        geometry.getFramingRect());
+            }
+            if (source == null) {
+                return false;
+            }
+
+            if (mMultipleResultHandler != null) {
+                return decodeMultiple(source, frame);
+            }
+            return decodeSingle(source, frame);
+        }
+
+        private boolean decodeSingle(LuminanceSource source, PreviewFrame frame) {
             Result rawResult = null;
-            PlanarYUVLuminanceSource source = buildLuminanceSource(data, width, height);
+            MultiFormatReader multiFormatReader = mMultiFormatReader;
+
+            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+            try {
+                rawResult = multiFormatReader.decodeWithState(bitmap);
+            } catch (ReaderException re) {
+                // continue
+            } catch (NullPointerException npe) {
+                // This is terrible
+            } catch (ArrayIndexOutOfBoundsException aoe) {
+
+            } finally {
+                multiFormatReader.reset();
+            }
 
-            if (source != null) {
-                BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+            // The inverted pass doubles the decode time, skip it once the budget is used up
+            if (rawResult == null && !frame.shouldAbort()) {
+                LuminanceSource invertedSource = source.invert();
+                bitmap = new BinaryBitmap(new HybridBinarizer(invertedSource));
                 try {
-                    rawResult = mMultiFormatReader.decodeWithState(bitmap);
-                } catch (ReaderException re) {
+                    rawResult = multiFormatReader.decodeWithState(bitmap);
+                } catch (NotFoundException e) {
                     // continue
-                } catch (NullPointerException npe) {
-                    // This is terrible
-                } catch (ArrayIndexOutOfBoundsException aoe) {
-
                 } finally {
-                    mMultiFormatReader.reset();
-                }
-
-                if (rawResult == null) {
-                    LuminanceSource invertedSource = source.invert();
-                    bitmap = new BinaryBitmap(new HybridBinarizer(invertedSource));
-                    try {
-                        rawResult = mMultiFormatReader.decodeWithState(bitmap);
-                    } catch (NotFoundException e) {
-                        // continue
-                    } finally {
-                        mMultiFormatReader.reset();
-                    }
+                    multiFormatReader.reset();
                 }
             }
 
             final Result finalRawResult = rawResult;
 
             if (finalRawResult != null) {
-                Handler handler = new Handler(Looper.getMainLooper());
-                handler.post(new Runnable() {
+                if (isDuplicateResult(finalRawResult.getBarcodeFormat(), finalRawResult.getText())) {
+                    return true;
+                }
+                final boolean stopPreview = !isContinuousScanning();
+                postResult(new ResultDispatcher.Delivery() {
+                    // Claimed on the main thread when the preview stops, read when delivering otherwise
+                    private ResultHandler mHandler;
+
                     @Override
-                    public void run() {
+                    protected boolean needsPreparation() {
+                        return stopPreview;
+                    }
+
+                    @Override
+                    protected void prepare() {
+                        mHandler = mResultHandler;
                         // Stopping the preview can take a little long.
                         // So we want to set result handler to null to discard subsequent calls to
                         // onPreviewFrame.
-                        ResultHandler tmpResultHandler = mResultHandler;
                         mResultHandler = null;
-
                         stopCameraPreview();
-                        if (tmpResultHandler != null) {
-                            tmpResultHandler.handleResult(finalRawResult);
+                    }
+
+                    @Override
+                    protected void deliver() {
+                        ResultHandler handler = stopPreview ? mHandler : mResultHandler;
+                        if (handler != null) {
+                            handler.handleResult(finalRawResult);
                         }
                     }
                 });
-            } else {
-                camera.setOneShotPreviewCallback(this);
+                return true;
+            }
+            return false;
+        }
+
+        private boolean decodeMultiple(LuminanceSource source, PreviewFrame frame) {
+            Result[] rawResults = decodeMultiple(source);
+            if (rawResults == null && !frame.shouldAbort()) {
+                rawResults = decodeMultiple(source.invert());
+            }
+            if (rawResults == null) {
+                return false;
+            }
+
+            final List<Result> results = new ArrayList<>(rawResults.length);
+            for (Result rawResult : rawResults) {
+                if (!isDuplicateResult(rawResult.getBarcodeFormat(), rawResult.getText())) {
+                    results.add(rawResult);
+                }
+            }
+            if (results.isEmpty()) {
+                return true;
+            }
+
+            final boolean stopPreview = !isContinuousScanning();
+            postResult(new ResultDispatcher.Delivery() {
+                // Claimed on the main thread when the preview stops, read when delivering otherwise
+                private MultipleResultHandler mHandler;
+
+                @Override
+                protected boolean needsPreparation() {
+                    return stopPreview;
+                }
+
+                @Override
+                protected void prepare() {
+                    mHandler = mMultipleResultHandler;
+                    mMultipleResultHandler = null;
+                    stopCameraPreview();
+                }
+
+                @Override
+                protected void deliver() {
+                    MultipleResultHandler handler = stopPreview ? mHandler : mMultipleResultHandler;
+                    if (handler != null) {
+                        handler.handleResults(results);
+                    }
+                }
+            });
+            return true;
+        }
+
+        private Result[] decodeMultiple(LuminanceSource source) {
+            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+            try {
+                return mMultipleReader.decodeMultiple(bitmap);
+            } catch (NotFoundException e) {
+                return null;
+            } catch (NullPointerException npe) {
+                return null;
+            } catch (ArrayIndexOutOfBoundsException aoe) {
+                return null;
+            } finally {
+                mMultiFormatReader.reset();
             }
-        } catch(RuntimeException e) {
-            // TODO: Terrible hack. It is possible that this method is invoked after camera is released.
-            Log.e(TAG, e.toString(), e);
         }
     }
 
@@ -179,8 +317,36 @@ public class ZXingScannerView extends BarcodeScannerView {
         super.resumeCameraPreview();
     }
 
+    public void resumeCameraPreviewMultiple(MultipleResultHandler multipleResultHandler) {
+        mMultipleResultHandler = multipleResultHandler;
+        super.resumeCameraPreview();
+    }
+
     public PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height) {
-        Rect rect = getFramingRectInPreview(width, height);
+        return buildLuminanceSource(data, width, height, getFramingRectInPreview(width, height));
+    }
+
+    private LuminanceSource buildRotatedLuminanceSource(byte[] data, FrameGeometry geometry) {
+        Rect rect = geometry.getFramingRect();
+        try {
+            return new RotatedYUVLuminanceSource(data, geometry.getPreviewWidth(), geometry.getPreviewHeight(),
+                    geometry.getFrameRotationCount(), rect.left, rect.top, rect.width(), rect.height());
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    private LuminanceSource buildBufferLuminanceSource(PreviewFrame frame, FrameGeometry geometry) {
+        Rect rect = geometry.getFramingRect();
+        try {
+            return new ByteBufferLuminanceSource(frame.getBuffer(), geometry.getPreviewWidth(), geometry.getPreviewHeight(),
+                    frame.getRowStride(), 1, geometry.getFrameRotationCount(), rect.left, rect.top, rect.width(), rect.height());
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    private PlanarYUVLuminanceSource buildLuminanceSource(byte[] data, int width, int height, Rect rect) {
         if (rect == null) {
             return null;
         }